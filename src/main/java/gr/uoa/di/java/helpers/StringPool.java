@@ -0,0 +1,143 @@
+package gr.uoa.di.java.helpers;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A cache of Strings keyed by the bytes they are decoded from. Returns the
+ * same String instance for equal byte sequences as long as it is in the
+ * cache, so that values repeated across entries of parsed files (like Wifi
+ * SSIDs or location providers) are kept in memory once. A lookup of a cached
+ * value does not create any objects. The cache holds at most {@code maxSize}
+ * strings (rounded up to a power of 2) - each value may go in one of two
+ * slots, a value found in the second one moves to the first and a new value
+ * evicts the one of the two used less recently, so the values seen often
+ * stay and the memory used is bounded however many distinct values are
+ * parsed. Thread safe and lock free : the slots hold immutable entries, so
+ * threads racing for a slot at worst evict each other's values.
+ */
+public final class StringPool {
+
+	private final String charsetName;
+	/** Two slots per value : hash & mask and the one after it */
+	private final Entry[] table;
+
+	/** An immutable cached value - safely published by its final fields */
+	private static final class Entry {
+
+		final byte[] key;
+		final int hash;
+		final String value;
+
+		Entry(byte[] key, int hash, String value) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @param charsetName
+	 *            the charset the bytes are decoded with
+	 * @param maxSize
+	 *            the maximum number of Strings kept - rounded up to a power
+	 *            of 2, at least 2
+	 * @throws IllegalArgumentException
+	 *             if maxSize is too big to be rounded up to an int
+	 */
+	public StringPool(String charsetName, int maxSize) {
+		if (charsetName == null)
+			throw new NullPointerException("charset can't be null");
+		if (maxSize > 1 << 30)
+			throw new IllegalArgumentException("Invalid size : " + maxSize);
+		this.charsetName = charsetName;
+		int capacity = 2;
+		while (capacity < maxSize) {
+			capacity <<= 1;
+		}
+		table = new Entry[capacity];
+	}
+
+	/**
+	 * Returns the String that the {@code length} bytes of {@code array}
+	 * starting at {@code offset} represent in the charset of the pool - an
+	 * instance already in the pool if one was decoded from the same bytes
+	 * before and was not evicted since. See
+	 * {@link Utils#arrayToString(byte[], int, int, String)}.
+	 *
+	 * @throws UnsupportedEncodingException
+	 *             if the charset of the pool is unsupported
+	 * @throws NullPointerException
+	 *             if array is null
+	 */
+	public String get(byte[] array, int offset, int length)
+			throws UnsupportedEncodingException {
+		if (length == 0) {
+			if (array == null)
+				throw new NullPointerException("byte[] can't be null");
+			return "";
+		}
+		final int hash = hash(array, offset, length);
+		final int first = hash & (table.length - 1);
+		final int second = (first + 1) & (table.length - 1);
+		final Entry e1 = table[first];
+		if (matches(e1, hash, array, offset, length)) return e1.value;
+		final Entry e2 = table[second];
+		if (matches(e2, hash, array, offset, length)) {
+			// moves first, swapping places with the value there - unless in
+			// its own first slot, or that value is in its second one
+			if (homeOf(e2) == first) {
+				table[second] = (homeOf(e1) == first) ? e1 : null;
+				table[first] = e2;
+			}
+			return e2.value;
+		}
+		final String value = new String(array, offset, length, charsetName);
+		final byte[] key = new byte[length];
+		System.arraycopy(array, offset, key, 0, length);
+		// the newest value goes first - the one it replaces moves second,
+		// unless it is there because its own first slot was taken
+		if (homeOf(e1) == first) table[second] = e1;
+		table[first] = new Entry(key, hash, value);
+		return value;
+	}
+
+	/**
+	 * The number of Strings in the pool - counted, so it takes time linear to
+	 * the maximum size of the pool, and may be stale if other threads are
+	 * using it.
+	 */
+	public int size() {
+		int size = 0;
+		for (Entry e : table) {
+			if (e != null) ++size;
+		}
+		return size;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** The first slot of the entry, -1 for null */
+	private int homeOf(Entry e) {
+		return (e == null) ? -1 : e.hash & (table.length - 1);
+	}
+
+	private static int hash(byte[] array, int offset, int length) {
+		int h = 1;
+		for (int i = offset, end = offset + length; i < end; ++i) {
+			h = 31 * h + array[i];
+		}
+		return h ^ (h >>> 16); // spread the high bits to the mask
+	}
+
+	private static boolean matches(Entry e, int hash, byte[] array,
+			int offset, int length) {
+		if (e == null || e.hash != hash) return false;
+		final byte[] key = e.key;
+		if (key.length != length) return false;
+		for (int i = 0; i < length; ++i) {
+			if (key[i] != array[offset + i]) return false;
+		}
+		return true;
+	}
+}
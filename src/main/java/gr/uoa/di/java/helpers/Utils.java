@@ -1,8 +1,6 @@
 package gr.uoa.di.java.helpers;
 
 import java.io.UnsupportedEncodingException;
-import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -77,12 +75,12 @@ public final class Utils {
 	 * list. If lb is null NullPointerException is thrown. If lb is empty
 	 * NumberFormatException is thrown. Otherwise lb must contain the ASCII
 	 * representation of the digits of a long number. If other characters are
-	 * contained a {@link NumberFormatException} is thrown. If characters
-	 * outside the ASCII range are contained the
-	 * {@link String#String(byte[], String)} constructor used internally will
-	 * result in unspecified behavior which in turn will lead to a
-	 * NumberFormatException (hopefully). Careful - the l/L long suffix must not
-	 * be included in the bytes - will result in NumberFormatException
+	 * contained (including characters outside the ASCII range) a
+	 * {@link NumberFormatException} is thrown. A leading sign is accepted.
+	 * Numbers that overflow a long are truncated to their low-order 64 bits,
+	 * as {@link java.math.BigInteger#longValue()} would do. Careful - the l/L
+	 * long suffix must not be included in the bytes - will result in
+	 * NumberFormatException
 	 *
 	 * @param lb
 	 *            the list of bytes that represent the characters representing a
@@ -97,11 +95,8 @@ public final class Utils {
 	public static long listToLong(List<Byte> lb) throws NumberFormatException {
 		if (lb == null)
 			throw new NullPointerException("List<Byte> can't be null");
-		try {
-			return new BigInteger(listToString(lb, ASCII)).longValue();
-		} catch (UnsupportedEncodingException e) {
-			throw new AssertionError(e); // "ASCII unsupported"
-		}
+		final byte[] array = listToArray(lb);
+		return arrayToLong(array, 0, array.length);
 	}
 
 	/**
@@ -109,13 +104,13 @@ public final class Utils {
 	 * list. If lb is null NullPointerException is thrown. If lb is empty
 	 * NumberFormatException is thrown. Otherwise lb must contain the ASCII
 	 * representation of the digits of a double number and possibly an exponent
-	 * or a decimal part etc. If other characters are contained a
-	 * {@link NumberFormatException} is thrown. If characters outside the ASCII
-	 * range are contained the {@link String#String(byte[], String)} constructor
-	 * used internally will result in unspecified behavior which in turn will
-	 * lead to a NumberFormatException (hopefully). Careful - the d/D double
-	 * suffix must not be included in the bytes - will result in
-	 * NumberFormatException
+	 * or a decimal part etc - the syntax accepted by
+	 * {@link java.math.BigDecimal#BigDecimal(String)}. If other characters are
+	 * contained (including characters outside the ASCII range, "NaN" and
+	 * "Infinity") a {@link NumberFormatException} is thrown. The result is
+	 * correctly rounded, so the bytes of {@code d + ""} are parsed back to d.
+	 * Careful - the d/D double suffix must not be included in the bytes - will
+	 * result in NumberFormatException
 	 *
 	 * @param lb
 	 *            the list of bytes that represent the characters representing a
@@ -131,13 +126,189 @@ public final class Utils {
 			throws NumberFormatException {
 		if (lb == null)
 			throw new NullPointerException("List<Byte> can't be null");
+		final byte[] array = listToArray(lb);
+		return arrayToDouble(array, 0, array.length);
+	}
+
+	/**
+	 * Returns the String that the {@code length} bytes of {@code array}
+	 * starting at {@code offset} represent in the given charset. Behaves like
+	 * {@link #listToString(List, String)} - if length is 0 the empty string is
+	 * returned immediately.
+	 *
+	 * @param array
+	 *            the array the bytes lie in
+	 * @param offset
+	 *            the index of the first byte to decode
+	 * @param length
+	 *            the number of bytes to decode
+	 * @param charsetName
+	 *            the charset name those bytes will be decoded with
+	 * @return a string constructed from the given bytes
+	 * @throws UnsupportedEncodingException
+	 *             if the charset given is unsupported (except if length is 0)
+	 * @throws NullPointerException
+	 *             if array is null
+	 * @throws IndexOutOfBoundsException
+	 *             if offset and length do not specify a range of the array
+	 */
+	public static String arrayToString(byte[] array, int offset, int length,
+			String charsetName) throws UnsupportedEncodingException {
+		if (array == null)
+			throw new NullPointerException("byte[] can't be null");
+		if (length == 0) return "";
+		return new String(array, offset, length, charsetName);
+	}
+
+	/**
+	 * Returns a long whose ASCII representation are the {@code length} bytes
+	 * of {@code array} starting at {@code offset}. Same semantics as
+	 * {@link #listToLong(List)}. The digits are accumulated directly - no
+	 * String or other objects are created unless the bytes are malformed.
+	 *
+	 * @throws NumberFormatException
+	 *             if the bytes do not represent a long (including the case
+	 *             length is 0)
+	 * @throws NullPointerException
+	 *             if array is null
+	 */
+	public static long arrayToLong(byte[] array, int offset, int length)
+			throws NumberFormatException {
+		if (array == null)
+			throw new NullPointerException("byte[] can't be null");
+		final int end = offset + length;
+		int i = offset;
+		final boolean negative = i < end && array[i] == '-';
+		if (negative || (i < end && array[i] == '+')) ++i;
+		if (i == end) throw numberFormatException(array, offset, length);
+		long result = 0; // overflows like BigInteger.longValue() truncates
+		for (; i < end; ++i) {
+			final int digit = array[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw numberFormatException(array, offset, length);
+			result = result * 10 + digit;
+		}
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Returns a double whose ASCII representation are the {@code length} bytes
+	 * of {@code array} starting at {@code offset}. Same semantics as
+	 * {@link #listToDouble(List)}. Numbers of up to
+	 * {@value #MAX_EXACT_DIGITS} significant digits whose mantissa and power of
+	 * ten are exactly representable as doubles - which includes almost all
+	 * the coordinates written by {@link Double#toString(double)} - are computed
+	 * with a single floating point multiplication or division, which is
+	 * correctly rounded. No objects are created in this case. Other numbers
+	 * are validated and passed to {@link Double#parseDouble(String)}.
+	 *
+	 * @throws NumberFormatException
+	 *             if the bytes do not represent a double (including the case
+	 *             length is 0)
+	 * @throws NullPointerException
+	 *             if array is null
+	 */
+	public static double arrayToDouble(byte[] array, int offset, int length)
+			throws NumberFormatException {
+		if (array == null)
+			throw new NullPointerException("byte[] can't be null");
+		final int end = offset + length;
+		int i = offset;
+		final boolean negative = i < end && array[i] == '-';
+		if (negative || (i < end && array[i] == '+')) ++i;
+		long mantissa = 0;
+		int significantDigits = 0, exponent = 0;
+		boolean digits = false, dot = false;
+		for (; i < end; ++i) {
+			final byte b = array[i];
+			final int digit = b - '0';
+			if (digit >= 0 && digit <= 9) {
+				digits = true;
+				if (significantDigits < MAX_EXACT_DIGITS) {
+					mantissa = mantissa * 10 + digit;
+					if (mantissa != 0) ++significantDigits;
+					if (dot) --exponent;
+				} else {
+					++significantDigits; // will take the slow path
+				}
+			} else if (b == '.' && !dot) {
+				dot = true;
+			} else if (b == 'e' || b == 'E') {
+				break;
+			} else throw numberFormatException(array, offset, length);
+		}
+		if (!digits) throw numberFormatException(array, offset, length);
+		if (i < end) { // the exponent
+			++i;
+			final boolean negativeExponent = i < end && array[i] == '-';
+			if (negativeExponent || (i < end && array[i] == '+')) ++i;
+			if (i == end) throw numberFormatException(array, offset, length);
+			int exp = 0;
+			for (; i < end; ++i) {
+				final int digit = array[i] - '0';
+				if (digit < 0 || digit > 9
+					|| exp > (MAX_EXPONENT - digit) / 10)
+					throw numberFormatException(array, offset, length);
+				exp = exp * 10 + digit;
+			}
+			exponent += negativeExponent ? -exp : exp;
+		}
+		if (mantissa == 0 && significantDigits == 0)
+			return negative ? -0.0 : 0.0;
+		if (significantDigits <= MAX_EXACT_DIGITS
+			&& mantissa <= MAX_EXACT_MANTISSA
+			&& exponent >= -MAX_EXACT_POWER_OF_TEN
+			&& exponent <= MAX_EXACT_POWER_OF_TEN) {
+			final double d = (exponent < 0) ? mantissa
+				/ POWERS_OF_TEN[-exponent] : mantissa
+				* POWERS_OF_TEN[exponent];
+			return negative ? -d : d;
+		}
 		try {
-			return new BigDecimal(listToString(lb, ASCII)).doubleValue();
+			return Double.parseDouble(arrayToString(array, offset, length,
+				ASCII));
 		} catch (UnsupportedEncodingException e) {
 			throw new AssertionError(e); // "ASCII unsupported"
 		}
 	}
 
+	// helpers of the numeric parsers
+	/** Digits that always fit in a long */
+	private static final int MAX_EXACT_DIGITS = 18;
+	/** Longs up to 2^53 are exactly representable as doubles */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	/** 10^22 is the biggest power of ten exactly representable as double */
+	private static final int MAX_EXACT_POWER_OF_TEN = 22;
+	private static final double[] POWERS_OF_TEN =
+			new double[MAX_EXACT_POWER_OF_TEN + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; ++i) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+	/** BigDecimal rejects exponents that do not fit in an int */
+	private static final int MAX_EXPONENT = Integer.MAX_VALUE;
+
+	private static NumberFormatException numberFormatException(byte[] array,
+			int offset, int length) {
+		try {
+			return new NumberFormatException("For input string: \""
+				+ arrayToString(array, offset, length, ISO8859) + "\"");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // "ISO-8859-1 unsupported"
+		}
+	}
+
+	private static byte[] listToArray(List<Byte> lb) {
+		final byte[] array = new byte[lb.size()];
+		int i = 0;
+		for (byte current : lb) {
+			array[i++] = current;
+		}
+		return array;
+	}
+
 	public static List<Byte> listFromArray(byte[] ba) {
 		if (ba == null) throw new NullPointerException("byte[] can't be null");
 		final List<Byte> lb = new ArrayList<Byte>();
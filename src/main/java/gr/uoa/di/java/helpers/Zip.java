@@ -1,48 +1,158 @@
 package gr.uoa.di.java.helpers;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
 
 import net.lingala.zip4j.core.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.util.Zip4jConstants;
 
 public final class Zip {
 
 	private Zip() {}
 
+	/** Pick the compression level by the size of the data - see {@link #level} */
+	public static final int ADAPTIVE_LEVEL = -2;
+	/** Data up to this size are compressed with the best compression level */
+	private static final long BEST_COMPRESSION_MAX = 1 << 22;
+	/** Data up to this size are compressed with the default level */
+	private static final long DEFAULT_COMPRESSION_MAX = 1 << 26;
+
 	public static ZipFile zipFolderLocked(final String dirToZip,
 			final String destination, Object lock) throws CompressException {
-		// http://stackoverflow.com/questions/13395218/android-compressing-folder
-		try {
-			ZipFile zipfile = new ZipFile(destination);
-			ZipParameters parameters = new ZipParameters();
-			parameters.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-			parameters.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_ULTRA);
-			synchronized (lock) {
-				zipfile.addFolder(dirToZip, parameters);
-			}
-			return zipfile;
-		} catch (ZipException e) {
-			throw new CompressException("Failed to compress file ", e);
+		synchronized (lock) {
+			return zipFolder(dirToZip, destination);
 		}
 	}
 
 	public static ZipFile zipFolder(final String dirToZip,
 			final String destination) throws CompressException {
-		// http://stackoverflow.com/questions/13395218/android-compressing-folder
+		return zipFolder(dirToZip, destination, ADAPTIVE_LEVEL, null);
+	}
+
+	/**
+	 * Zips the given folder - the zip contains the folder itself. Each file
+	 * is deflated independently of the others, in parallel if an executor is
+	 * given. The result is a standard zip (see {@link #unZipFolder}).
+	 *
+	 * @param dirToZip
+	 *            the path of the folder to zip
+	 * @param destination
+	 *            the path of the zip file
+	 * @param level
+	 *            the {@link Deflater} compression level (0-9) or
+	 *            {@link #ADAPTIVE_LEVEL}
+	 * @param executor
+	 *            deflates the files, null to deflate them one after the other
+	 *            in the calling thread
+	 * @return the zip file
+	 * @throws CompressException
+	 *             if the folder can't be zipped
+	 */
+	public static ZipFile zipFolder(final String dirToZip,
+			final String destination, final int level, final Executor executor)
+			throws CompressException {
+		final File dir = new File(dirToZip);
+		if (!dir.isDirectory())
+			throw new CompressException(dirToZip + " is not a directory", null);
+		final List<File> files = new ArrayList<File>();
+		final List<String> names = new ArrayList<String>();
+		addFolder(dir, dir.getName() + "/", files, names);
+		return zip(files, names, destination, level, executor);
+	}
+
+	public static ZipFile zipFiles(final List<File> files,
+			final String folderInZip, final String destination)
+			throws CompressException {
+		return zipFiles(files, folderInZip, destination, ADAPTIVE_LEVEL, null);
+	}
+
+	/**
+	 * Zips the given files in a folder named {@code folderInZip} in the zip.
+	 * See {@link #zipFolder(String, String, int, Executor)}.
+	 *
+	 * @param files
+	 *            the files to zip
+	 * @param folderInZip
+	 *            the name of the folder the files are put in, in the zip
+	 * @param destination
+	 *            the path of the zip file
+	 * @param level
+	 *            the {@link Deflater} compression level (0-9) or
+	 *            {@link #ADAPTIVE_LEVEL}
+	 * @param executor
+	 *            deflates the files, null to deflate them one after the other
+	 *            in the calling thread
+	 * @return the zip file
+	 * @throws CompressException
+	 *             if the files can't be zipped
+	 */
+	public static ZipFile zipFiles(final List<File> files,
+			final String folderInZip, final String destination,
+			final int level, final Executor executor) throws CompressException {
+		final List<File> entries = new ArrayList<File>();
+		final List<String> names = new ArrayList<String>();
+		addFiles(files, folderInZip, entries, names);
+		return zip(entries, names, destination, level, executor);
+	}
+
+	/**
+	 * Zips the given files into the given stream, as
+	 * {@link #zipFiles(List, String, String, int, Executor)} would into a
+	 * file - no temporary file is written. The entries are written as soon as
+	 * they are deflated, so compressing and sending the data overlap. The
+	 * stream is flushed but not closed - to write to a channel wrap it with
+	 * {@link java.nio.channels.Channels#newOutputStream}.
+	 *
+	 * @param files
+	 *            the files to zip
+	 * @param folderInZip
+	 *            the name of the folder the files are put in, in the zip
+	 * @param out
+	 *            the stream the zip is written to
+	 * @param level
+	 *            the {@link Deflater} compression level (0-9) or
+	 *            {@link #ADAPTIVE_LEVEL}
+	 * @param executor
+	 *            deflates the files, null to deflate them one after the other
+	 *            in the calling thread
+	 * @throws CompressException
+	 *             if the files can't be zipped or the stream written to - part
+	 *             of the zip may have been written
+	 */
+	public static void zipFiles(final List<File> files,
+			final String folderInZip, final OutputStream out, final int level,
+			final Executor executor) throws CompressException {
+		final List<File> entries = new ArrayList<File>();
+		final List<String> names = new ArrayList<String>();
+		addFiles(files, folderInZip, entries, names);
 		try {
-			ZipFile zipfile = new ZipFile(destination);
-			ZipParameters parameters = new ZipParameters();
-			parameters.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-			parameters.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_ULTRA);
-			zipfile.addFolder(dirToZip, parameters);
-			return zipfile;
-		} catch (ZipException e) {
-			throw new CompressException("Failed to compress file ", e);
+			ZipWriter.zip(entries, names, out, level(entries, names, level),
+				executor);
+		} catch (IOException e) {
+			throw new CompressException("Failed to compress files ", e);
 		}
 	}
 
+	/**
+	 * Returns the compression level for data of the given size - the best
+	 * compression for small data (such as the data of a few hours), faster
+	 * levels for bigger ones whose compression takes long and costs battery.
+	 *
+	 * @param bytes
+	 *            the size of the data to compress
+	 * @return a {@link Deflater} compression level
+	 */
+	public static int level(long bytes) {
+		if (bytes <= BEST_COMPRESSION_MAX) return Deflater.BEST_COMPRESSION;
+		if (bytes <= DEFAULT_COMPRESSION_MAX) return 6; // zlib's default
+		return Deflater.BEST_SPEED;
+	}
+
 	/**
 	 * Unzip the fileToUnzip to the destPath
 	 *
@@ -67,6 +177,72 @@ public final class Zip {
 		}
 	}
 
+	private static ZipFile zip(final List<File> files,
+			final List<String> names, final String destination, int level,
+			final Executor executor) throws CompressException {
+		level = level(files, names, level);
+		final File zip = new File(destination);
+		try {
+			ZipWriter.zip(files, names, zip, level, executor);
+			return new ZipFile(zip);
+		} catch (IOException e) {
+			zip.delete(); // don't leave a corrupt zip behind
+			throw new CompressException("Failed to compress files ", e);
+		} catch (ZipException e) {
+			throw new CompressException("Failed to compress files ", e);
+		}
+	}
+
+	/**
+	 * Resolves {@link #ADAPTIVE_LEVEL} by the size of the given files and
+	 * checks the level is valid.
+	 */
+	private static int level(final List<File> files, final List<String> names,
+			int level) {
+		if (level == ADAPTIVE_LEVEL) {
+			long bytes = 0;
+			for (int i = 0; i < files.size(); ++i) {
+				if (!names.get(i).endsWith("/")) bytes += files.get(i).length();
+			}
+			level = level(bytes);
+		}
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid level : " + level);
+		return level;
+	}
+
+	/** Adds the files in a folder named {@code folderInZip} */
+	private static void addFiles(final List<File> files,
+			final String folderInZip, final List<File> entries,
+			final List<String> names) {
+		final String folder = folderInZip + "/";
+		entries.add(null); // the folder does not exist as such
+		names.add(folder);
+		for (File file : files) {
+			entries.add(file);
+			names.add(folder + file.getName());
+		}
+	}
+
+	/** Adds the folder and its contents, recursively */
+	private static void addFolder(final File dir, final String name,
+			final List<File> files, final List<String> names)
+			throws CompressException {
+		files.add(dir);
+		names.add(name);
+		final File[] contents = dir.listFiles();
+		if (contents == null)
+			throw new CompressException("Failed to list " + dir, null);
+		for (File file : contents) {
+			if (file.isDirectory()) {
+				addFolder(file, name + file.getName() + "/", files, names);
+			} else {
+				files.add(file);
+				names.add(name + file.getName());
+			}
+		}
+	}
+
 	public static final class CompressException extends Exception {
 
 		private static final long serialVersionUID = -2914380925512148442L;
@@ -0,0 +1,310 @@
+package gr.uoa.di.java.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes standard zip files whose entries are deflated independently of each
+ * other - so they can be deflated in parallel. Each file is deflated in
+ * memory by a task run on the given Executor (or in the calling thread) and
+ * the entries are then written in order, followed by the central directory.
+ * No zip64 support - files and archives must be smaller than 4GB.
+ */
+final class ZipWriter {
+
+	private ZipWriter() {}
+
+	private static final int BUFFER_SIZE = 8192;
+	/** Entries deflated ahead of the one being written */
+	private static final int AHEAD = 8;
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	/** Version 2.0 - deflate and directories */
+	private static final int VERSION = 20;
+	/** General purpose flag : the names are UTF-8 */
+	private static final int UTF8_NAMES = 0x0800;
+	private static final int STORED = 0, DEFLATED = 8;
+	/** MS-DOS directory attribute */
+	private static final int DIRECTORY_ATTRIBUTE = 0x10;
+
+	/**
+	 * Zips the given files. {@code names} are the names of the entries - a
+	 * name ending in "/" denotes a directory, whose file is used for its
+	 * modification time only and may be null.
+	 *
+	 * @param executor
+	 *            deflates the files, null to deflate them in the calling
+	 *            thread
+	 * @throws IOException
+	 *             if reading a file or writing the zip fails
+	 */
+	static void zip(final List<File> files, final List<String> names,
+			final File destination, final int level, final Executor executor)
+			throws IOException {
+		final OutputStream out = new FileOutputStream(destination);
+		try {
+			zip(files, names, out, level, executor);
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// could not close the file ?
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Zips the given files into the given stream, which is flushed but not
+	 * closed. Each entry is written as soon as it is deflated, while the
+	 * executor deflates the next ones - at most {@link #AHEAD} entries are
+	 * kept in memory. See {@link #zip(List, List, File, int, Executor)}.
+	 *
+	 * @throws IOException
+	 *             if reading a file or writing to the stream fails
+	 */
+	static void zip(final List<File> files, final List<String> names,
+			final OutputStream stream, final int level,
+			final Executor executor) throws IOException {
+		final List<FutureTask<Entry>> tasks = new ArrayList<FutureTask<Entry>>();
+		for (int i = 0; i < files.size(); ++i) {
+			final File file = files.get(i);
+			final String name = names.get(i);
+			tasks.add(new FutureTask<Entry>(new Callable<Entry>() {
+
+				@Override
+				public Entry call() throws IOException {
+					if (!name.endsWith("/")) return deflate(file, name, level);
+					return new Entry(name, (file == null) ? System
+						.currentTimeMillis() : file.lastModified());
+				}
+			}));
+		}
+		final OutputStream out = new BufferedOutputStream(stream, BUFFER_SIZE);
+		int submitted = 0;
+		try {
+			final List<Entry> entries = new ArrayList<Entry>(tasks.size());
+			long offset = 0;
+			for (int i = 0; i < tasks.size(); ++i) {
+				final FutureTask<Entry> task = tasks.get(i);
+				if (executor == null) task.run();
+				for (; executor != null && submitted < tasks.size()
+					&& submitted <= i + AHEAD; ++submitted) {
+					executor.execute(tasks.get(submitted));
+				}
+				final Entry entry = get(task);
+				entry.offset = offset;
+				offset += entry.writeLocalHeader(out);
+				entry.data.writeTo(out);
+				offset += entry.data.size();
+				entry.data = null; // written - let it go
+				entries.add(entry);
+			}
+			long size = 0;
+			for (Entry entry : entries) {
+				size += entry.writeCentralHeader(out);
+			}
+			writeEnd(out, entries.size(), size, offset);
+			out.flush();
+		} finally {
+			for (FutureTask<Entry> task : tasks) {
+				task.cancel(true); // no op for the completed ones
+			}
+		}
+	}
+
+	// =========================================================================
+	// Private helpers
+	// =========================================================================
+	private static final class Entry {
+
+		private final byte[] name;
+		private final int time;
+		private final int method;
+		private final int flags;
+		private int crc;
+		private long size;
+		private long compressedSize;
+		private long offset;
+		private ByteArrayOutputStream data = new ByteArrayOutputStream(0);
+
+		/** A directory */
+		Entry(String name, long lastModified) {
+			this.name = utf8(name);
+			this.time = dosTime(lastModified);
+			this.method = STORED;
+			this.flags = UTF8_NAMES;
+		}
+
+		/** A file - crc, sizes and data to be filled in */
+		Entry(String name, long lastModified, ByteArrayOutputStream data) {
+			this.name = utf8(name);
+			this.time = dosTime(lastModified);
+			this.method = DEFLATED;
+			this.flags = UTF8_NAMES;
+			this.data = data;
+		}
+
+		boolean isDirectory() {
+			return method == STORED && name[name.length - 1] == '/';
+		}
+
+		int writeLocalHeader(OutputStream out) throws IOException {
+			writeInt(out, LOCAL_HEADER);
+			writeShort(out, VERSION);
+			writeCommon(out);
+			writeShort(out, 0); // extra field length
+			out.write(name);
+			return 30 + name.length;
+		}
+
+		int writeCentralHeader(OutputStream out) throws IOException {
+			writeInt(out, CENTRAL_HEADER);
+			writeShort(out, VERSION); // made by
+			writeShort(out, VERSION); // needed to extract
+			writeCommon(out);
+			writeShort(out, 0); // extra field length
+			writeShort(out, 0); // comment length
+			writeShort(out, 0); // disk number
+			writeShort(out, 0); // internal attributes
+			writeInt(out, isDirectory() ? DIRECTORY_ATTRIBUTE : 0);
+			writeInt(out, (int) checkSize(offset));
+			out.write(name);
+			return 46 + name.length;
+		}
+
+		/** Flags to name length - the same in both headers but version */
+		private void writeCommon(OutputStream out) throws IOException {
+			writeShort(out, flags);
+			writeShort(out, method);
+			writeInt(out, time);
+			writeInt(out, crc);
+			writeInt(out, (int) checkSize(compressedSize));
+			writeInt(out, (int) checkSize(size));
+			writeShort(out, name.length);
+		}
+	}
+
+	private static Entry deflate(File file, String name, int level)
+			throws IOException {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream(
+			(int) Math.min(file.length() / 2 + 64, Integer.MAX_VALUE));
+		final Entry entry = new Entry(name, file.lastModified(), data);
+		final CRC32 crc = new CRC32();
+		final Deflater deflater = new Deflater(level, true); // raw, as in zip
+		final byte[] input = new byte[BUFFER_SIZE];
+		final byte[] output = new byte[BUFFER_SIZE];
+		final FileInputStream fis = new FileInputStream(file);
+		try {
+			for (int read; (read = fis.read(input)) != -1;) {
+				crc.update(input, 0, read);
+				entry.size += read;
+				deflater.setInput(input, 0, read);
+				while (!deflater.needsInput()) {
+					data.write(output, 0, deflater.deflate(output));
+				}
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				data.write(output, 0, deflater.deflate(output));
+			}
+		} finally {
+			deflater.end();
+			try {
+				fis.close();
+			} catch (IOException e) {
+				// could not close the file ?
+				e.printStackTrace();
+			}
+		}
+		entry.crc = (int) crc.getValue();
+		entry.compressedSize = data.size();
+		return entry;
+	}
+
+	private static Entry get(FutureTask<Entry> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted zipping");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new AssertionError(cause); // call() throws IOException
+		}
+	}
+
+	private static void writeEnd(OutputStream out, int entries, long size,
+			long offset) throws IOException {
+		if (entries > 0xffff)
+			throw new IOException("Too many entries for a zip : " + entries);
+		writeInt(out, END_OF_CENTRAL_DIRECTORY);
+		writeShort(out, 0); // this disk
+		writeShort(out, 0); // disk with the central directory
+		writeShort(out, entries); // on this disk
+		writeShort(out, entries);
+		writeInt(out, (int) checkSize(size));
+		writeInt(out, (int) checkSize(offset));
+		writeShort(out, 0); // comment length
+	}
+
+	private static long checkSize(long size) throws IOException {
+		if (size > 0xffffffffL)
+			throw new IOException("Too big for a zip without zip64 : " + size);
+		return size;
+	}
+
+	/** Little endian, as all the numbers in a zip */
+	private static void writeShort(OutputStream out, int value)
+			throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+	}
+
+	private static void writeInt(OutputStream out, int value)
+			throws IOException {
+		writeShort(out, value);
+		writeShort(out, value >>> 16);
+	}
+
+	/** The MS-DOS date and time of the given millis, in the local zone */
+	private static int dosTime(long millis) {
+		final Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(millis);
+		final int year = c.get(Calendar.YEAR);
+		if (year < 1980) return (1 << 21) | (1 << 16); // 1980-01-01
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21
+			| c.get(Calendar.DAY_OF_MONTH) << 16
+			| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5
+			| c.get(Calendar.SECOND) >> 1;
+	}
+
+	private static byte[] utf8(String name) {
+		try {
+			return name.getBytes(Utils.UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // UTF-8 is always supported
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package gr.uoa.di.monitoring.android.files;
+
+import gr.uoa.di.monitoring.model.Data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A data file entries are appended to. The entries are gathered in memory and
+ * written together through a channel kept open between writes, when
+ * {@link #FLUSH_SIZE} bytes are pending or when {@link #flush()} is called -
+ * {@link Persist} schedules a flush {@link #FLUSH_DELAY_MILLIS} after an
+ * entry is buffered in an empty buffer. Not thread safe - {@link Persist}
+ * synchronizes on the instances. Also holds the buffers the entries of the
+ * file are assembled in, so writers to different files share no state.
+ */
+final class DataFile {
+
+	/** Pending bytes that trigger a write */
+	static final int FLUSH_SIZE = 1 << 14;
+	/** The longest an entry stays in memory, barring a flush failure */
+	static final long FLUSH_DELAY_MILLIS = 10 * 1000;
+	/** Files this big are rolled into a segment - see {@link #isDue(long)} */
+	static final long SEGMENT_SIZE = 1 << 18;
+	/** Files older than this are rolled into a segment */
+	static final long SEGMENT_MILLIS = 60 * 60 * 1000;
+	/** Initial size of the buffers the entries are assembled in */
+	private static final int ENTRY_CAPACITY = 256;
+	final File file;
+	/** Opened on the first write, append only */
+	private FileOutputStream fos;
+	private FileChannel channel;
+	private byte[] pending = new byte[FLUSH_SIZE];
+	private int size;
+	/**
+	 * The length of the file written so far, -1 if not known - looked up
+	 * when the file is opened and kept up to date by the writes, so the file
+	 * is not stat'ed for each entry
+	 */
+	private long fileLength = -1;
+	/** True for binary, null till first needed - see {@link Persist} */
+	Boolean binary;
+	/** When the first entry was appended to the file, 0 if not known */
+	private long created;
+	/** Reused to assemble the text entries */
+	private byte[] entry;
+	/** Reused to encode the binary entries */
+	private Encoder encoder;
+	/**
+	 * The datum written last in full in change only mode, null if none since
+	 * the file was rolled - see {@link Persist#setChangesOnly(long)}
+	 */
+	Data last;
+	/** The time of the datum written last, in full or as a repeat entry */
+	long written;
+	/** The last datum skipped as a repeat of {@link #last}, null if none */
+	Data repeated;
+
+	DataFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the buffer the text entries are assembled in, grown to hold at
+	 * least {@code length} bytes.
+	 */
+	byte[] entryBuffer(int length) {
+		if (entry == null || entry.length < length)
+			entry = new byte[Math.max(length, (entry == null) ? ENTRY_CAPACITY
+					: entry.length * 2)];
+		return entry;
+	}
+
+	/** Returns the Encoder the binary entries are encoded in */
+	Encoder encoder() {
+		if (encoder == null) encoder = new Encoder(ENTRY_CAPACITY);
+		return encoder;
+	}
+
+	/** The length of the file including the pending bytes */
+	long length() {
+		if (fileLength < 0) fileLength = file.length();
+		return fileLength + size;
+	}
+
+	boolean hasPending() {
+		return size != 0;
+	}
+
+	/**
+	 * Buffers {@code length} bytes of array starting at {@code offset},
+	 * writing the pending bytes if they exceed {@link #FLUSH_SIZE}.
+	 *
+	 * @throws IOException
+	 *             if writing the pending bytes fails - the bytes given are
+	 *             buffered anyway
+	 */
+	void append(byte[] array, int offset, int length) throws IOException {
+		if (size + length > pending.length) {
+			final byte[] bigger = new byte[Math.max(pending.length * 2, size
+				+ length)];
+			System.arraycopy(pending, 0, bigger, 0, size);
+			pending = bigger;
+		}
+		if (created == 0) created = System.currentTimeMillis();
+		System.arraycopy(array, offset, pending, size, length);
+		size += length;
+		if (size >= FLUSH_SIZE) flush();
+	}
+
+	/**
+	 * Writes the pending bytes to the file in one write. If writing fails the
+	 * bytes stay pending.
+	 *
+	 * @throws IOException
+	 *             if the file can't be opened or written to
+	 */
+	void flush() throws IOException {
+		if (size == 0) return;
+		reopenIfDeleted();
+		if (channel == null) {
+			fos = new FileOutputStream(file, true);
+			channel = fos.getChannel();
+			fileLength = channel.size();
+		}
+		final ByteBuffer bytes = ByteBuffer.wrap(pending, 0, size);
+		try {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		} catch (IOException e) {
+			// keep what was not written, the channel may be unusable
+			final int written = bytes.position();
+			fileLength += written;
+			System.arraycopy(pending, written, pending, 0, size - written);
+			size -= written;
+			close();
+			throw e;
+		}
+		fileLength += size;
+		size = 0;
+		if (pending.length > FLUSH_SIZE) pending = new byte[FLUSH_SIZE];
+	}
+
+	/**
+	 * Returns true if the file should be rolled into a segment before
+	 * appending more entries - if it is at least {@link #SEGMENT_SIZE} bytes
+	 * or its first entry was appended {@link #SEGMENT_MILLIS} ago.
+	 */
+	boolean isDue(long now) {
+		return length() >= SEGMENT_SIZE
+			|| (created != 0 && now - created >= SEGMENT_MILLIS);
+	}
+
+	/**
+	 * Writes the pending bytes, closes the file and renames it to the given
+	 * segment. Then the file starts anew - empty, of unknown format and with
+	 * no datum to repeat.
+	 *
+	 * @throws IOException
+	 *             if writing or renaming fails
+	 */
+	void roll(File segment) throws IOException {
+		flush();
+		close();
+		if (!file.renameTo(segment))
+			throw new IOException("Failed to rename " + file + " to "
+				+ segment);
+		fileLength = 0;
+		binary = null;
+		created = 0;
+		last = null;
+		repeated = null;
+	}
+
+	/** Discards the pending bytes */
+	void discard() {
+		size = 0;
+	}
+
+	/**
+	 * Closes the channel if the file was deleted behind our back, so the next
+	 * write creates it anew instead of writing to the deleted file. Files
+	 * should be deleted via {@link Persist#deleteInternalFiles}.
+	 */
+	private void reopenIfDeleted() {
+		if (channel != null && !file.exists()) close();
+	}
+
+	/**
+	 * Closes the channel - the pending bytes are kept. The length of the
+	 * file is looked up again when next needed.
+	 */
+	void close() {
+		fileLength = -1;
+		if (channel == null) return;
+		try {
+			fos.close(); // closes the channel
+		} catch (IOException e) {
+			// could not close the file ?
+			e.printStackTrace();
+		}
+		fos = null;
+		channel = null;
+	}
+}
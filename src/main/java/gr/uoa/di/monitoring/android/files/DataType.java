@@ -0,0 +1,234 @@
+package gr.uoa.di.monitoring.android.files;
+
+import gr.uoa.di.monitoring.model.Data;
+import gr.uoa.di.monitoring.model.Fields;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Binds a {@link Data} subclass to its {@link Fields} enum and to the name of
+ * the file its instances are stored in. Each Data subclass provides a single
+ * instance which is registered with the {@link Parser} (see
+ * {@link Parser#register(DataType)}) - the parser then dispatches to it
+ * directly, without reflection. Being the only code that can call the private
+ * constructors of the Data subclasses, the instances also create the data
+ * the parser fills - via {@link #newInstance()}, which is not public so
+ * clients can't get hold of empty, mutable, data instances.
+ *
+ * @param <D>
+ *            the Data subclass
+ * @param <T>
+ *            the Fields enum of the Data subclass
+ */
+public abstract class DataType<D extends Data, T extends Enum<T> & Fields<?, D, ?>> {
+
+	private final Class<D> dataClass;
+	private final String filename;
+	private final Class<T> fields;
+	/** Passed to the parser - calls {@link #newInstance()} */
+	private final Parser.Factory<D> factory = new Parser.Factory<D>() {
+
+		@Override
+		public D newInstance() {
+			return DataType.this.newInstance();
+		}
+	};
+
+	/**
+	 * @param dataClass
+	 *            the Data subclass
+	 * @param filename
+	 *            the name of the file the data is stored in - just the
+	 *            filename not a path
+	 * @param fields
+	 *            the Fields enum of the Data subclass
+	 */
+	protected DataType(Class<D> dataClass, String filename, Class<T> fields) {
+		if (dataClass == null || filename == null || fields == null)
+			throw new NullPointerException("DataType arguments can't be null");
+		this.dataClass = dataClass;
+		this.filename = filename;
+		this.fields = fields;
+	}
+
+	public final Class<D> dataClass() {
+		return dataClass;
+	}
+
+	public final String filename() {
+		return filename;
+	}
+
+	public final Class<T> fields() {
+		return fields;
+	}
+
+	/**
+	 * Creates a new, empty, instance of the Data subclass for the parser to
+	 * fill.
+	 */
+	protected abstract D newInstance();
+
+	/**
+	 * Returns the data file of this type in the given directory
+	 *
+	 * @param rootDir
+	 *            a directory containing data files
+	 * @return the data file for this type - may not exist
+	 */
+	public final File file(File rootDir) {
+		return new File(rootDir, filename);
+	}
+
+	/**
+	 * Returns the files of this type in the given directory in the order
+	 * their data were written - the sealed segments of the data file (see
+	 * {@link Store#segment(String, long)}) in the order of their sequence
+	 * numbers followed by the data file itself, if they exist.
+	 *
+	 * @param rootDir
+	 *            a directory containing data files
+	 * @return the files of this type, empty if there are none
+	 */
+	public final List<File> files(File rootDir) {
+		final List<File> files = new ArrayList<File>();
+		final String[] names = rootDir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (Store.isSegment(name, filename))
+					files.add(new File(rootDir, name));
+			}
+		}
+		Collections.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				return Store.compareWriteOrder(f1.getName(), f2.getName());
+			}
+		});
+		final File file = file(rootDir);
+		if (file.isFile()) files.add(file);
+		return files;
+	}
+
+	/**
+	 * Parses the files of this type in the given directory (see
+	 * {@link #files(File)}). See
+	 * {@link Parser#decode(File, Class, Parser.Factory)}.
+	 *
+	 * @throws FileNotFoundException
+	 *             if there are no such files
+	 */
+	public final List<D> parse(File rootDir) throws FileNotFoundException,
+			IOException, ParserException {
+		final List<D> data = new ArrayList<D>();
+		for (File file : existingFiles(rootDir)) {
+			data.addAll(Parser.decode(file, fields, factory));
+		}
+		return data;
+	}
+
+	/**
+	 * Parses the files of this type in the given directory on the executor's
+	 * threads, one after the other. See
+	 * {@link Parser#decode(File, Class, Parser.Factory, ExecutorService, int)}.
+	 *
+	 * @throws FileNotFoundException
+	 *             if there are no such files
+	 */
+	public final List<D> parse(File rootDir, ExecutorService executor,
+			int parallelism) throws FileNotFoundException, IOException,
+			ParserException {
+		final List<D> data = new ArrayList<D>();
+		for (File file : existingFiles(rootDir)) {
+			data.addAll(Parser.decode(file, fields, factory, executor,
+				parallelism));
+		}
+		return data;
+	}
+
+	/**
+	 * Parses the files of this type in the given directory passing the data
+	 * instances to the sink one by one. See
+	 * {@link Parser#stream(File, Class, Parser.Factory, Parser.Sink)}.
+	 *
+	 * @throws FileNotFoundException
+	 *             if there are no such files
+	 */
+	public final void stream(File rootDir, Parser.Sink<? super D> sink)
+			throws FileNotFoundException, IOException, ParserException {
+		for (File file : existingFiles(rootDir)) {
+			Parser.stream(file, fields, factory, sink);
+		}
+	}
+
+	/**
+	 * Parses the files of this type in the given directory passing the data
+	 * instances created by the given factory to the sink one by one - for
+	 * instance to parse into a single instance reused for all the entries
+	 * when the sink copies the values out. See
+	 * {@link Parser#stream(File, Class, Parser.Factory, Parser.Sink)}.
+	 *
+	 * @throws FileNotFoundException
+	 *             if there are no such files
+	 */
+	public final void stream(File rootDir, Parser.Factory<D> factory,
+			Parser.Sink<? super D> sink) throws FileNotFoundException,
+			IOException, ParserException {
+		for (File file : existingFiles(rootDir)) {
+			Parser.stream(file, fields, factory, sink);
+		}
+	}
+
+	/**
+	 * Parses the bytes read from the given stream as a file of this type,
+	 * passing the data instances to the sink one by one. The stream is not
+	 * closed. See
+	 * {@link Parser#stream(InputStream, Class, Parser.Factory, Parser.Sink)}.
+	 */
+	public final void stream(InputStream is, Parser.Sink<? super D> sink)
+			throws IOException, ParserException {
+		Parser.stream(is, fields, factory, sink);
+	}
+
+	/**
+	 * Parses the remaining bytes of the buffer as a file of this type. See
+	 * {@link Parser#stream(ByteBuffer, Class, Parser.Factory, Parser.Sink)}.
+	 */
+	final void stream(ByteBuffer buffer, Parser.Sink<? super D> sink)
+			throws ParserException {
+		Parser.stream(buffer, fields, factory, sink);
+	}
+
+	/**
+	 * Writes the values of all the fields of datum in the binary format - see
+	 * {@link Fields#write(Data, Encoder)}. Used by {@link Persist}.
+	 */
+	final void write(D datum, Encoder out) {
+		for (T field : fields.getEnumConstants()) {
+			field.write(datum, out);
+		}
+	}
+
+	private List<File> existingFiles(File rootDir)
+			throws FileNotFoundException {
+		final List<File> files = files(rootDir);
+		if (files.isEmpty())
+			throw new FileNotFoundException(file(rootDir) + " not found");
+		return files;
+	}
+
+	@Override
+	public String toString() {
+		return dataClass.getSimpleName() + " (" + filename + ")";
+	}
+}
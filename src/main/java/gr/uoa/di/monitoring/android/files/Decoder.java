@@ -0,0 +1,196 @@
+package gr.uoa.di.monitoring.android.files;
+
+import gr.uoa.di.java.helpers.StringPool;
+import gr.uoa.di.java.helpers.Utils;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads the values of the fields of an entry in the binary Store format - the
+ * counterpart of {@link Encoder}. Passed to
+ * {@link gr.uoa.di.monitoring.model.Fields#read} for each of the fields in
+ * turn. Reads from a slice of a byte[] holding the entry - reading past the
+ * end of the entry throws a ParserException. Reads the entries of one file
+ * in order, in the version of the file - times are rebuilt from the
+ * differences written since the last keyframe. Not thread safe.
+ */
+public final class Decoder {
+
+	private final byte version;
+	private byte[] array;
+	private int position;
+	private int limit;
+	private boolean keyframe;
+	/** The time read last, the base of the next one */
+	private long previousTime;
+	/** False till a keyframe is read - no base for the times */
+	private boolean hasTime;
+	/** Whether readTime() returns {@link #time} instead of the time read */
+	private boolean retimed;
+	private long time;
+
+	Decoder(byte version) {
+		this.version = version;
+	}
+
+	// =========================================================================
+	// API - used by the Fields
+	// =========================================================================
+	public long readLong() throws ParserException {
+		require(8);
+		long value = 0;
+		for (int i = 0; i < 8; ++i) {
+			value = (value << 8) | (array[position++] & 0xff);
+		}
+		return value;
+	}
+
+	public int readInt() throws ParserException {
+		if (version >= Store.VERSION_2) {
+			final long zigzag = readVarlong();
+			if ((zigzag >>> 32) != 0)
+				throw new ParserException("Malformed file : bad varint");
+			return (int) (zigzag >>> 1) ^ -(int) (zigzag & 1);
+		}
+		require(4);
+		int value = 0;
+		for (int i = 0; i < 4; ++i) {
+			value = (value << 8) | (array[position++] & 0xff);
+		}
+		return value;
+	}
+
+	/** Reads the time written by {@link Encoder#writeTime(long)} */
+	public long readTime() throws ParserException {
+		if (version < Store.VERSION_2) return readLong();
+		final long zigzag = readVarlong();
+		final long value = (zigzag >>> 1) ^ -(zigzag & 1);
+		if (retimed) return time;
+		if (keyframe) hasTime = true;
+		else if (!hasTime)
+			throw new ParserException("Malformed file : time difference "
+				+ "before a keyframe");
+		return previousTime = keyframe ? value : previousTime + value;
+	}
+
+	public double readDouble() throws ParserException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	/** Reads a String, which may be null as of {@link Store#VERSION_4} */
+	public String readString() throws ParserException {
+		final int length = readLength();
+		if (length < 0) return null;
+		require(length);
+		try {
+			final String value = Utils.arrayToString(array, position, length,
+				Store.FILES_ENCODING);
+			position += length;
+			return value;
+		} catch (UnsupportedEncodingException e) {
+			throw new ParserException("Malformed file", e);
+		}
+	}
+
+	/**
+	 * Reads a String getting it from the given pool - see
+	 * {@link StringPool#get(byte[], int, int)}
+	 */
+	public String readString(StringPool pool) throws ParserException {
+		final int length = readLength();
+		if (length < 0) return null;
+		require(length);
+		try {
+			final String value = pool.get(array, position, length);
+			position += length;
+			return value;
+		} catch (UnsupportedEncodingException e) {
+			throw new ParserException("Malformed file", e);
+		}
+	}
+
+	/** Reads the number of values of a list field */
+	public int readCount() throws ParserException {
+		final int value = readVarint(array, position, limit);
+		if (value == -1)
+			throw new ParserException("Malformed file : truncated entry");
+		position += Encoder.varintLength(value);
+		return value;
+	}
+
+	/** Reads the number of bytes of a String, -1 for null */
+	private int readLength() throws ParserException {
+		final int count = readCount();
+		return (version < Store.VERSION_4) ? count : count - 1;
+	}
+
+	// =========================================================================
+	// Package private - used by the Parser
+	// =========================================================================
+	/** Sets the entry to be read, the next one in the file */
+	void entry(byte[] buffer, int offset, int length, boolean keyframe) {
+		this.array = buffer;
+		this.position = offset;
+		this.limit = offset + length;
+		this.keyframe = keyframe;
+		this.retimed = false;
+	}
+
+	/**
+	 * Sets the entry to be read, a keyframe in the current version, whose
+	 * time is read as the given one - used to copy a datum at another time.
+	 */
+	void entry(byte[] buffer, int offset, int length, long time) {
+		entry(buffer, offset, length, true);
+		this.retimed = true;
+		this.time = time;
+	}
+
+	/** Returns true if all the bytes of the entry were read */
+	boolean consumed() {
+		return position == limit;
+	}
+
+	/**
+	 * Reads the unsigned varint written by {@link Encoder#writeVarint} at
+	 * {@code offset} of {@code buffer}, which ends at {@code to}. Returns the
+	 * value, or -1 if the buffer ends before the varint does. The varint is
+	 * {@link Encoder#varintLength(int)} bytes long.
+	 *
+	 * @throws ParserException
+	 *             if the varint does not hold a non negative int or is not in
+	 *             its shortest form
+	 */
+	static int readVarint(byte[] buffer, int offset, int to)
+			throws ParserException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (offset == to) return -1;
+			final byte b = buffer[offset++];
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) { // last byte
+				if ((shift == 28 && (b & 0x78) != 0)
+					|| (shift > 0 && b == 0)) break;
+				return value;
+			}
+		}
+		throw new ParserException("Malformed file : bad varint");
+	}
+
+	/** Reads an unsigned varint holding a long */
+	private long readVarlong() throws ParserException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			require(1);
+			final byte b = array[position++];
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) return value;
+		}
+		throw new ParserException("Malformed file : bad varint");
+	}
+
+	private void require(int bytes) throws ParserException {
+		if (bytes > limit - position)
+			throw new ParserException("Malformed file : truncated entry");
+	}
+}
@@ -0,0 +1,183 @@
+package gr.uoa.di.monitoring.android.files;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Writes the values of the fields of an entry in the binary Store format.
+ * Passed to {@link gr.uoa.di.monitoring.model.Fields#write} for each of the
+ * fields in turn. Longs and doubles are written big endian in fixed width,
+ * ints as zig-zag varints, times as the difference from the time of the
+ * previous entry (see {@link #writeTime(long)}) and Strings as a varint with
+ * the number of their bytes (in {@link Store#FILES_ENCODING}) plus one - 0
+ * for null - followed by the bytes. Not thread safe - one instance is used for the entries of one file,
+ * one entry at a time.
+ */
+public final class Encoder {
+
+	/** A varint holding an int takes up to 5 bytes */
+	static final int MAX_VARINT_LENGTH = 5;
+	/** A varint holding a long takes up to 10 bytes */
+	private static final int MAX_VARLONG_LENGTH = 10;
+	private byte[] buffer;
+	private int size;
+	/** Whether the entry being written is a keyframe */
+	private boolean keyframe;
+	/** Entries written since the last keyframe, -1 to force a keyframe */
+	private int sinceKeyframe = -1;
+	/** The time written last, the base of the next one */
+	private long previousTime;
+
+	Encoder(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	// =========================================================================
+	// API - used by the Fields
+	// =========================================================================
+	public void writeLong(long value) {
+		ensure(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[size++] = (byte) (value >>> shift);
+		}
+	}
+
+	/** Writes a zig-zag varint - values near zero take a byte or two */
+	public void writeInt(int value) {
+		writeVarlong(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+	}
+
+	/**
+	 * Writes a time in milliseconds as a zig-zag varint holding the
+	 * difference from the time written by the previous entry - or the time
+	 * itself if the entry is a keyframe. Entries must write at most one time.
+	 */
+	public void writeTime(long time) {
+		final long value = keyframe ? time : time - previousTime;
+		writeVarlong((value << 1) ^ (value >> 63));
+		previousTime = time;
+	}
+
+	public void writeDouble(double value) {
+		writeLong(Double.doubleToLongBits(value));
+	}
+
+	/** Writes the given String, which may be null */
+	public void writeString(String value) {
+		ensure(MAX_VARINT_LENGTH);
+		if (value == null) {
+			size = writeVarint(0, buffer, size);
+			return;
+		}
+		final byte[] bytes;
+		try {
+			bytes = value.getBytes(Store.FILES_ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // UTF-8 is always supported
+		}
+		size = writeVarint(bytes.length + 1, buffer, size);
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, size, bytes.length);
+		size += bytes.length;
+	}
+
+	/**
+	 * Writes the number of values of a list field
+	 *
+	 * @throws IllegalArgumentException
+	 *             if count is negative
+	 */
+	public void writeCount(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("Negative count : " + count);
+		ensure(MAX_VARINT_LENGTH);
+		size = writeVarint(count, buffer, size);
+	}
+
+	// =========================================================================
+	// Package private - used by Persist
+	// =========================================================================
+	byte[] buffer() {
+		return buffer;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Discards the bytes written and skips the first {@code start} bytes of
+	 * the buffer - room for a header to be filled in by the caller. Starts a
+	 * new entry, a keyframe if {@code keyframe} is true or if
+	 * {@link Store#KEYFRAME_INTERVAL} entries were written since the last one.
+	 */
+	void reset(int start, boolean keyframe) {
+		size = 0;
+		ensure(start);
+		size = start;
+		if (keyframe || sinceKeyframe < 0
+			|| sinceKeyframe + 1 >= Store.KEYFRAME_INTERVAL) sinceKeyframe = 0;
+		else ++sinceKeyframe;
+		this.keyframe = sinceKeyframe == 0;
+	}
+
+	/**
+	 * Discards the bytes written and skips the first {@code start} bytes of
+	 * the buffer, as {@link #reset(int, boolean)}. Starts a repeat entry -
+	 * never a keyframe, as it is decoded as a copy of the entry before it.
+	 */
+	void resetRepeat(int start) {
+		size = 0;
+		ensure(start);
+		size = start;
+		keyframe = false;
+	}
+
+	/** Whether the entry being written is a keyframe */
+	boolean keyframe() {
+		return keyframe;
+	}
+
+	/**
+	 * Writes {@code value} as an unsigned varint in {@code array} at
+	 * {@code offset} - 7 bits per byte, least significant first, the high bit
+	 * set in all bytes but the last.
+	 *
+	 * @return the index after the last byte written
+	 */
+	static int writeVarint(int value, byte[] array, int offset) {
+		while ((value & ~0x7f) != 0) {
+			array[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		array[offset++] = (byte) value;
+		return offset;
+	}
+
+	/** Returns the number of bytes {@link #writeVarint} writes for value */
+	static int varintLength(int value) {
+		int length = 1;
+		while ((value & ~0x7f) != 0) {
+			++length;
+			value >>>= 7;
+		}
+		return length;
+	}
+
+	/** Writes an unsigned varint holding a long */
+	private void writeVarlong(long value) {
+		ensure(MAX_VARLONG_LENGTH);
+		while ((value & ~0x7fL) != 0) {
+			buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[size++] = (byte) value;
+	}
+
+	private void ensure(int extra) {
+		if (size + extra <= buffer.length) return;
+		final byte[] bigger = new byte[Math.max(buffer.length * 2, size
+			+ extra)];
+		System.arraycopy(buffer, 0, bigger, 0, size);
+		buffer = bigger;
+	}
+}
@@ -0,0 +1,418 @@
+package gr.uoa.di.monitoring.android.files;
+
+import gr.uoa.di.java.helpers.Utils;
+import gr.uoa.di.monitoring.model.Data;
+import gr.uoa.di.monitoring.model.Fields;
+
+import java.nio.ByteBuffer;
+
+import static gr.uoa.di.monitoring.android.files.Store.ARRAY_DELIMITER;
+import static gr.uoa.di.monitoring.android.files.Store.DELIMITER;
+import static gr.uoa.di.monitoring.android.files.Store.NEWLINE;
+import static gr.uoa.di.monitoring.android.files.Store.REPEAT;
+
+/**
+ * Parses the entries of a data file in one of the Store formats - the text one
+ * (delimited ASCII values) or the binary one (length prefixed entries). An
+ * instance creates a data instance per entry, has the fields fill it in and
+ * passes it to the sink. Repeat entries (see
+ * {@link Persist#setChangesOnly(long)}) are passed as copies of the previous
+ * datum with the time of the entry. It is fed chunks of the input in order by
+ * the {@link Parser}, which detects the format with {@link #of}.
+ *
+ * @param <D>
+ *            the Data subclass parsed
+ * @param <T>
+ *            the Fields of the Data subclass
+ */
+abstract class EntryFormat<D extends Data, T extends Enum<T> & Fields<?, D, ?>> {
+
+	final T[] fields;
+	final Parser.Factory<D> factory;
+	final Parser.Sink<? super D> sink;
+	/** The datum passed to the sink last - the one a repeat entry copies */
+	private D last;
+	/** Lazily created to copy the last datum - see {@link #repeat(long)} */
+	private Encoder copier;
+	private Decoder copy;
+
+	EntryFormat(T[] fields, Parser.Factory<D> factory,
+			Parser.Sink<? super D> sink) {
+		this.fields = fields;
+		this.factory = factory;
+		this.sink = sink;
+	}
+
+	/**
+	 * Returns the format of the input that starts with the bytes from
+	 * {@code from} to {@code to} - which must be at least
+	 * {@link Store#HEADER_LENGTH} bytes unless the input is shorter.
+	 *
+	 * @throws ParserException
+	 *             if the input is binary in an unsupported version
+	 */
+	static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> EntryFormat<D, T>
+			of(byte[] buffer, int from, int to, T[] fields,
+					Parser.Factory<D> factory, Parser.Sink<? super D> sink)
+					throws ParserException {
+		if (!Store.isBinary(buffer, from, to))
+			return new Text<D, T>(fields, factory, sink);
+		return new Binary<D, T>(Store.checkHeader(buffer, from, to), fields,
+			factory, sink);
+	}
+
+	/**
+	 * Returns a new format of the same kind and version passing the data to
+	 * the given sink - for a range of the input after its start, which has no
+	 * header.
+	 */
+	abstract EntryFormat<D, T> forRange(Parser.Sink<? super D> sink);
+
+	/** The number of bytes of the file header */
+	abstract int headerLength();
+
+	/**
+	 * Parses the complete entries in {@code buffer} from {@code from} to
+	 * {@code to} - {@code from} must be the start of an entry.
+	 *
+	 * @return the index after the last entry parsed
+	 * @throws ParserException
+	 *             if an entry is malformed
+	 */
+	abstract int entries(byte[] buffer, int from, int to)
+			throws ParserException;
+
+	/**
+	 * Parses the bytes left at the end of the input, after
+	 * {@link #entries(byte[], int, int)} has parsed all complete entries.
+	 *
+	 * @throws ParserException
+	 *             if the bytes are malformed
+	 */
+	abstract void end(byte[] buffer, int from, int to) throws ParserException;
+
+	/**
+	 * Returns the start of an entry at or after {@code from}, or
+	 * {@code limit} if there is none. {@code entry} is the
+	 * start of an entry before {@code from} - used to hop over entries when
+	 * they can't be recognized by scanning.
+	 *
+	 * @throws ParserException
+	 *             if an entry is malformed
+	 */
+	abstract int nextEntry(ByteBuffer buffer, int entry, int from, int limit)
+			throws ParserException;
+
+	/** Passes the given datum to the sink */
+	final void accept(D datum) {
+		last = datum;
+		sink.accept(datum);
+	}
+
+	/**
+	 * Passes a copy of the last datum with the given time to the sink. The
+	 * datum is copied by its fields via the binary format - so the factory
+	 * may reuse its instances.
+	 *
+	 * @throws ParserException
+	 *             if no datum was parsed before
+	 */
+	final void repeat(long time) throws ParserException {
+		if (last == null)
+			throw new ParserException("Malformed file : repeat entry with no "
+				+ "entry before it");
+		if (copier == null) {
+			copier = new Encoder(256); // grows as needed
+			copy = new Decoder(Store.VERSION);
+		}
+		copier.reset(0, true);
+		for (T field : fields) {
+			field.write(last, copier);
+		}
+		final D datum = factory.newInstance();
+		copy.entry(copier.buffer(), 0, copier.size(), time);
+		for (T field : fields) {
+			field.read(copy, datum);
+		}
+		accept(datum);
+	}
+
+	// =========================================================================
+	// Text format
+	// =========================================================================
+	/**
+	 * Receives the values found by {@link EntryFormat#scan}. The byte[] passed
+	 * in {@link #field} must not be retained.
+	 */
+	abstract static class FieldVisitor<T> {
+
+		abstract void startEntry() throws ParserException;
+
+		abstract void field(T field, byte[] array, int offset, int length,
+				int index) throws ParserException;
+
+		/** Called after all the values of a list field were visited */
+		abstract void endList(T field, int size) throws ParserException;
+
+		abstract void endEntry() throws ParserException;
+
+		/**
+		 * Called instead of the other methods for a repeat entry, with its
+		 * time as ASCII - skips it unless overridden.
+		 */
+		void repeat(byte[] array, int offset, int length)
+				throws ParserException {}
+	}
+
+	/**
+	 * Entries end in NEWLINE. Values are passed to the fields as slices of the
+	 * buffer - see {@link Fields#parse(byte[], int, int, int, Data)}.
+	 */
+	private static final class Text<D extends Data, T extends Enum<T> & Fields<?, D, ?>>
+			extends EntryFormat<D, T> {
+
+		private final FieldVisitor<T> visitor = new FieldVisitor<T>() {
+
+			private D current;
+			private int listSize;
+
+			@Override
+			void startEntry() {
+				current = factory.newInstance();
+				listSize = -1;
+			}
+
+			@Override
+			void field(T field, byte[] array, int offset, int length, int index)
+					throws ParserException {
+				field.parse(array, offset, length, index, current);
+			}
+
+			@Override
+			void endList(T field, int size) throws ParserException {
+				if (listSize == -1) listSize = size;
+				else if (listSize != size)
+					throw new ParserException("Malformed file : " + field
+						+ " has " + size + " values instead of " + listSize);
+			}
+
+			@Override
+			void endEntry() {
+				accept(current);
+				current = null;
+			}
+
+			@Override
+			void repeat(byte[] array, int offset, int length)
+					throws ParserException {
+				try {
+					Text.this.repeat(Utils.arrayToLong(array, offset, length));
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+		};
+
+		Text(T[] fields, Parser.Factory<D> factory, Parser.Sink<? super D> sink) {
+			super(fields, factory, sink);
+		}
+
+		@Override
+		EntryFormat<D, T> forRange(Parser.Sink<? super D> sink) {
+			return new Text<D, T>(fields, factory, sink);
+		}
+
+		@Override
+		int headerLength() {
+			return 0;
+		}
+
+		@Override
+		int entries(byte[] buffer, int from, int to) throws ParserException {
+			final int end = lastIndexOf(buffer, NEWLINE, from, to) + 1;
+			if (end == 0) return from; // no complete entry
+			scan(buffer, from, end, fields, visitor);
+			return end;
+		}
+
+		@Override
+		void end(byte[] buffer, int from, int to) throws ParserException {
+			scan(buffer, from, to, fields, visitor); // last entry, no NEWLINE
+		}
+
+		@Override
+		int nextEntry(ByteBuffer buffer, int entry, int from, int limit) {
+			while (from < limit) { // the first byte after a NEWLINE
+				if (buffer.get(from++) == NEWLINE
+					&& (from == limit || buffer.get(from) != REPEAT))
+					return from; // not a repeat - those need the entry before
+			}
+			return limit;
+		}
+	}
+
+	/**
+	 * Scans the bytes from {@code from} (inclusive) to {@code to} (exclusive)
+	 * in one pass and calls the visitor for each entry, field and - for list
+	 * fields - element of the list. Entries end in NEWLINE, fields in
+	 * DELIMITER and elements of a list in ARRAY_DELIMITER. Fields missing at
+	 * the end of an entry are visited as empty (non list fields) or as having
+	 * no elements (list fields). Entries starting with REPEAT are passed to
+	 * {@link FieldVisitor#repeat} instead.
+	 */
+	static <T extends Enum<T> & Fields<?, ?, ?>> void scan(final byte[] buffer,
+			final int from, final int to, final T[] fields,
+			final FieldVisitor<T> visitor) throws ParserException {
+		// friggin FIXME : malformed files ? empty lines ?
+		for (int entry = from; entry < to;) {
+			final int entryEnd = indexOf(buffer, NEWLINE, entry, to);
+			if (buffer[entry] == REPEAT) {
+				visitor.repeat(buffer, entry + 1, entryEnd - entry - 1);
+				entry = entryEnd + 1;
+				continue;
+			}
+			visitor.startEntry();
+			int field = entry;
+			for (T daField : fields) {
+				final int fieldEnd = indexOf(buffer, DELIMITER, field, entryEnd);
+				if (!daField.isList()) {
+					visitor.field(daField, buffer, field, fieldEnd - field, 0);
+				} else {
+					int index = 0;
+					for (int element = field; element < fieldEnd;) {
+						final int elementEnd = indexOf(buffer, ARRAY_DELIMITER,
+							element, fieldEnd);
+						visitor.field(daField, buffer, element, elementEnd
+							- element, index++);
+						element = elementEnd + 1;
+					}
+					visitor.endList(daField, index);
+				}
+				field = (fieldEnd < entryEnd) ? fieldEnd + 1 : entryEnd;
+			}
+			visitor.endEntry();
+			entry = entryEnd + 1;
+		}
+	}
+
+	/**
+	 * Returns the index of the first occurrence of {@code b} in buffer between
+	 * {@code from} (inclusive) and {@code to} (exclusive), or {@code to} if b
+	 * is not found.
+	 */
+	private static int indexOf(final byte[] buffer, final byte b, int from,
+			final int to) {
+		for (; from < to; ++from) {
+			if (buffer[from] == b) return from;
+		}
+		return to;
+	}
+
+	/**
+	 * Returns the index of the last occurrence of {@code b} in buffer between
+	 * {@code from} (inclusive) and {@code to} (exclusive), or -1 if b is not
+	 * found.
+	 */
+	private static int lastIndexOf(final byte[] buffer, final byte b,
+			final int from, int to) {
+		while (--to >= from) {
+			if (buffer[to] == b) return to;
+		}
+		return -1;
+	}
+
+	// =========================================================================
+	// Binary format
+	// =========================================================================
+	/**
+	 * Entries are a varint with their length followed by the values as read
+	 * by {@link Fields#read(Decoder, Data)}. Bytes of an entry not read by the
+	 * fields (written by a newer version of the fields) are skipped. As of
+	 * {@link Store#VERSION_2} the varint also holds the keyframe bit and
+	 * ranges of the input must start at a keyframe. As of
+	 * {@link Store#VERSION_3} it also holds the repeat bit - repeat entries
+	 * hold just a time.
+	 */
+	private static final class Binary<D extends Data, T extends Enum<T> & Fields<?, D, ?>>
+			extends EntryFormat<D, T> {
+
+		private final byte version;
+		private final Decoder in;
+		private final byte[] varint = new byte[Encoder.MAX_VARINT_LENGTH];
+
+		Binary(byte version, T[] fields, Parser.Factory<D> factory,
+				Parser.Sink<? super D> sink) {
+			super(fields, factory, sink);
+			this.version = version;
+			in = new Decoder(version);
+		}
+
+		@Override
+		EntryFormat<D, T> forRange(Parser.Sink<? super D> sink) {
+			return new Binary<D, T>(version, fields, factory, sink);
+		}
+
+		@Override
+		int headerLength() {
+			return Store.HEADER_LENGTH;
+		}
+
+		@Override
+		int entries(byte[] buffer, int from, int to) throws ParserException {
+			for (int prefix; from < to
+				&& (prefix = Decoder.readVarint(buffer, from, to)) != -1;) {
+				final int start = from + Encoder.varintLength(prefix);
+				final int length = length(prefix);
+				if (length > to - start) break; // incomplete entry
+				in.entry(buffer, start, length, keyframe(prefix));
+				if (repeat(prefix)) repeat(in.readTime());
+				else {
+					final D datum = factory.newInstance();
+					for (T field : fields) {
+						field.read(in, datum);
+					}
+					accept(datum);
+				}
+				from = start + length;
+			}
+			return from;
+		}
+
+		@Override
+		void end(byte[] buffer, int from, int to) throws ParserException {
+			if (from < to)
+				throw new ParserException("Malformed file : truncated entry");
+		}
+
+		/** Hops over the entries before from - and then to a keyframe */
+		@Override
+		int nextEntry(ByteBuffer buffer, int entry, int from, int limit)
+				throws ParserException {
+			while (entry < limit) {
+				final int length = Math.min(varint.length, limit - entry);
+				for (int i = 0; i < length; ++i) {
+					varint[i] = buffer.get(entry + i);
+				}
+				final int prefix = Decoder.readVarint(varint, 0, length);
+				if (prefix == -1) return limit;
+				if (entry >= from && keyframe(prefix)) return entry;
+				entry += Encoder.varintLength(prefix) + length(prefix);
+			}
+			return limit;
+		}
+
+		private int length(int prefix) {
+			if (version >= Store.VERSION_3) return prefix >>> 2;
+			return (version >= Store.VERSION_2) ? prefix >>> 1 : prefix;
+		}
+
+		private boolean repeat(int prefix) {
+			return version >= Store.VERSION_3 && (prefix & 2) != 0;
+		}
+
+		/** All the entries of VERSION_1 files are keyframes */
+		private boolean keyframe(int prefix) {
+			return version < Store.VERSION_2 || (prefix & 1) != 0;
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package gr.uoa.di.monitoring.android.files;
+
+import gr.uoa.di.monitoring.model.Data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Processes the zips uploaded by the devices (see {@link Persist#file}) in
+ * three stages, each run by its own threads : the unzip stage inflates the
+ * data files of an upload in memory, the parse stage decodes them and the
+ * sink stage passes the data to the {@link Sink} - typically to be written to
+ * a database. The stages are connected by bounded queues, so a burst of
+ * uploads is queued instead of occupying the request threads and a slow
+ * stage makes the ones before it wait (back-pressure) instead of piling data
+ * in memory. Meant for servers - create one instance and
+ * {@link #submit(File)} the uploads to it as they arrive. Thread safe.
+ */
+public final class Ingest {
+
+	/** Initial size of the buffer of entries of unknown size */
+	private static final int BUFFER_SIZE = 1 << 16;
+	/** Marks the end of the uploads, one per thread of a stage */
+	private static final Upload END = new Upload(null);
+	private final Sink sink;
+	private final Stage unzip;
+	private final Stage parse;
+	private final Stage store;
+	/** Held shared while submitting, exclusively to shut down */
+	private final ReadWriteLock closing = new ReentrantReadWriteLock();
+	private boolean closed;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	/**
+	 * Receives the data of each upload, on the threads of the sink stage.
+	 * Must be thread safe if the sink stage has more than one thread.
+	 */
+	public interface Sink {
+
+		/**
+		 * Receives the data parsed from an upload.
+		 *
+		 * @param deviceId
+		 *            the device ID - see {@link Parser#getDeviceID(String)}
+		 * @param upload
+		 *            the uploaded zip
+		 * @param data
+		 *            a Map with keys the Data classes and values Lists of
+		 *            data instances, as returned by
+		 *            {@link Parser#parseArchive(File)}
+		 * @throws Exception
+		 *             if the data can't be stored - passed to
+		 *             {@link #failed(File, Exception)}
+		 */
+		void accept(String deviceId, File upload,
+				Map<Class<? extends Data>, List<Data>> data) throws Exception;
+
+		/**
+		 * Called instead of {@link #accept} if an upload can't be read or
+		 * parsed, or if accept() throws. The other uploads are processed
+		 * regardless.
+		 *
+		 * @param upload
+		 *            the uploaded zip
+		 * @param e
+		 *            the failure - an {@link ExecutionException} wrapping it
+		 *            if it was an Error, such as an OutOfMemoryError - which
+		 *            is then rethrown, ending the thread that processed the
+		 *            upload, and a new thread takes its place
+		 */
+		void failed(File upload, Exception e);
+	}
+
+	/**
+	 * Starts the threads of the stages.
+	 *
+	 * @param sink
+	 *            receives the data of the uploads
+	 * @param unzipThreads
+	 *            the threads that read and inflate the uploads - I/O bound
+	 * @param parseThreads
+	 *            the threads that decode the data - CPU bound
+	 * @param sinkThreads
+	 *            the threads that call the sink
+	 * @param capacity
+	 *            the number of uploads each stage queues - when the queue of
+	 *            the unzip stage is full {@link #submit(File)} blocks
+	 * @throws IllegalArgumentException
+	 *             if any of the numbers is not positive
+	 * @throws NullPointerException
+	 *             if sink is null
+	 */
+	public Ingest(Sink sink, int unzipThreads, int parseThreads,
+			int sinkThreads, int capacity) {
+		if (sink == null) throw new NullPointerException("Sink can't be null");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive : "
+				+ capacity);
+		this.sink = sink;
+		store = new Stage("Ingest sink", sinkThreads, capacity, null) {
+
+			@Override
+			void process(Upload upload) throws Exception {
+				final Map<Class<? extends Data>, List<Data>> data = upload.data;
+				upload.data = null;
+				Ingest.this.sink.accept(upload.deviceId, upload.file, data);
+			}
+		};
+		parse = new Stage("Ingest parse", parseThreads, capacity, store) {
+
+			@Override
+			void process(Upload upload) throws ParserException {
+				final Map<Class<? extends Data>, List<Data>> data = Parser
+					.newMap();
+				for (int i = 0; i < upload.types.size(); ++i) {
+					Parser.parse(upload.types.get(i), ByteBuffer
+						.wrap(upload.files.get(i)), data);
+				}
+				upload.types = null;
+				upload.files = null;
+				upload.data = data;
+			}
+		};
+		unzip = new Stage("Ingest unzip", unzipThreads, capacity, parse) {
+
+			@Override
+			void process(Upload upload) throws IOException {
+				upload.unzip();
+			}
+		};
+		store.start();
+		parse.start();
+		unzip.start();
+	}
+
+	/**
+	 * Queues the given upload to be processed, waiting for room in the queue
+	 * if it is full. The file must not be deleted before the Sink receives
+	 * it.
+	 *
+	 * @param upload
+	 *            a zip uploaded by a device, named as {@link Persist#file}
+	 *            names it
+	 * @throws InterruptedException
+	 *             if interrupted while waiting - the upload is not queued
+	 * @throws IllegalStateException
+	 *             if {@link #shutdown()} was called
+	 */
+	public void submit(File upload) throws InterruptedException {
+		offer(upload, -1, null);
+	}
+
+	/**
+	 * Queues the given upload to be processed, waiting up to the given time
+	 * for room in the queue if it is full. See {@link #submit(File)}.
+	 *
+	 * @return true if the upload was queued, false if the time elapsed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting - the upload is not queued
+	 * @throws IllegalStateException
+	 *             if {@link #shutdown()} was called
+	 */
+	public boolean offer(File upload, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		if (upload == null)
+			throw new NullPointerException("Upload can't be null");
+		final Lock shared = closing.readLock();
+		shared.lock();
+		try {
+			if (closed) throw new IllegalStateException("Shut down");
+			if (unit == null) {
+				unzip.queue.put(new Upload(upload));
+				return true;
+			}
+			return unzip.queue.offer(new Upload(upload), timeout, unit);
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting uploads. The uploads already queued are processed and
+	 * then the threads end - see {@link #awaitTermination}. Waits for the
+	 * uploads being submitted and for room for the end marks in the queue of
+	 * the unzip stage. Calling it again has no effect.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for room in the queue - call
+	 *             shutdown() again to finish shutting down
+	 */
+	public void shutdown() throws InterruptedException {
+		final Lock exclusive = closing.writeLock();
+		exclusive.lock();
+		try {
+			if (closed && unzip.ended == unzip.threads.size()) return;
+			closed = true;
+			for (; unzip.ended < unzip.threads.size(); ++unzip.ended) {
+				unzip.queue.put(END);
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * Waits till all the uploads are processed and the threads end, after
+	 * {@link #shutdown()}.
+	 *
+	 * @return true if the threads ended, false if the time elapsed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	// =========================================================================
+	// Private helpers
+	// =========================================================================
+	/** An upload going through the stages, filled in by each one in turn */
+	private static final class Upload {
+
+		final File file;
+		String deviceId;
+		/** The type of each of the data files, in the order they are read */
+		List<DataType<?, ?>> types;
+		/** The inflated data files */
+		List<byte[]> files;
+		Map<Class<? extends Data>, List<Data>> data;
+
+		Upload(File file) {
+			this.file = file;
+		}
+
+		/** Reads and inflates the data files of the upload */
+		void unzip() throws IOException {
+			deviceId = Parser.getDeviceID(file.getName());
+			types = new ArrayList<DataType<?, ?>>();
+			files = new ArrayList<byte[]>();
+			final ZipFile zip = new ZipFile(file);
+			try {
+				for (ZipEntry entry : Parser.dataEntries(zip)) {
+					types.add(Parser.type(entry));
+					files.add(read(zip, entry));
+				}
+			} finally {
+				try {
+					zip.close();
+				} catch (IOException e) {
+					// could not close the file ?
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private static byte[] read(ZipFile zip, ZipEntry entry)
+				throws IOException {
+			final long size = entry.getSize();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Too big : " + entry.getName());
+			byte[] bytes = new byte[(size < 0) ? BUFFER_SIZE : (int) size];
+			int read = 0;
+			final InputStream is = zip.getInputStream(entry);
+			try {
+				for (int n;; read += n) {
+					if (read == bytes.length) {
+						if (size >= 0) break;
+						final byte[] bigger = new byte[bytes.length * 2];
+						System.arraycopy(bytes, 0, bigger, 0, read);
+						bytes = bigger;
+					}
+					if ((n = is.read(bytes, read, bytes.length - read)) == -1)
+						break;
+				}
+			} finally {
+				try {
+					is.close();
+				} catch (IOException e) {
+					// could not close the entry ?
+					e.printStackTrace();
+				}
+			}
+			if (read == bytes.length) return bytes;
+			if (size >= 0)
+				throw new IOException("Truncated entry : " + entry.getName());
+			final byte[] exact = new byte[read];
+			System.arraycopy(bytes, 0, exact, 0, read);
+			return exact;
+		}
+	}
+
+	/**
+	 * Threads taking the uploads from a bounded queue, processing them and
+	 * passing them to the next stage. The last thread to take an end mark
+	 * passes one to each thread of the next stage - so the uploads queued
+	 * before the marks are processed by all the stages before the threads
+	 * end.
+	 */
+	private abstract class Stage {
+
+		final BlockingQueue<Upload> queue;
+		final List<Thread> threads = new ArrayList<Thread>();
+		/** The end marks put in the queue - guarded by the closing lock */
+		int ended;
+		private final Stage next;
+		private final AtomicInteger running;
+
+		Stage(String name, int count, int capacity, Stage next) {
+			if (count < 1)
+				throw new IllegalArgumentException(name
+					+ " threads must be positive : " + count);
+			queue = new ArrayBlockingQueue<Upload>(capacity);
+			this.next = next;
+			running = new AtomicInteger(count);
+			for (int i = 1; i <= count; ++i) {
+				threads.add(newThread(name + " " + i));
+			}
+		}
+
+		/**
+		 * Processes the given upload, filling in what the next stage needs.
+		 *
+		 * @throws Exception
+		 *             if the upload can't be processed - it is passed to the
+		 *             Sink as failed and not to the next stage
+		 */
+		abstract void process(Upload upload) throws Exception;
+
+		void start() {
+			for (Thread thread : threads) {
+				thread.start();
+			}
+		}
+
+		private Thread newThread(String name) {
+			return new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					work();
+				}
+			}, name);
+		}
+
+		/**
+		 * Starts a thread taking the place of the calling one, which is about
+		 * to die - counted as running before the caller ends, so the stage
+		 * does not end early.
+		 */
+		private void replace() {
+			running.incrementAndGet();
+			boolean started = false;
+			try {
+				newThread(Thread.currentThread().getName()).start();
+				started = true;
+			} finally {
+				if (!started) running.decrementAndGet();
+			}
+		}
+
+		private void failed(Upload upload, Exception e) {
+			try {
+				sink.failed(upload.file, e);
+			} catch (RuntimeException re) {
+				re.printStackTrace(); // keep the thread alive
+			}
+		}
+
+		private void work() {
+			boolean died = true;
+			try {
+				for (Upload upload; (upload = queue.take()) != END;) {
+					try {
+						process(upload);
+					} catch (Exception e) {
+						failed(upload, e);
+						continue;
+					} catch (Error e) {
+						// tell the sink and let the Error end the thread
+						failed(upload, new ExecutionException(e));
+						throw e;
+					}
+					if (next != null) next.queue.put(upload);
+				}
+				died = false;
+			} catch (InterruptedException e) {
+				// the threads are not interrupted by the Ingest - end
+				Thread.currentThread().interrupt();
+				died = false;
+			} finally {
+				try {
+					// the queue must still be drained, or the stages before
+					// block on it
+					if (died) replace();
+				} finally {
+					// however the thread ends, or awaitTermination hangs
+					end();
+				}
+			}
+		}
+
+		/**
+		 * Called by each thread of the stage as it ends - the last one passes
+		 * the END marks to the next stage, or ends the Ingest.
+		 */
+		private void end() {
+			if (running.decrementAndGet() > 0) return;
+			if (next == null) {
+				terminated.countDown();
+				return;
+			}
+			boolean interrupted = false;
+			for (int i = 0; i < next.threads.size();) {
+				try {
+					next.queue.put(END);
+					++i;
+				} catch (InterruptedException e) {
+					interrupted = true; // the next stage must still end
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+}
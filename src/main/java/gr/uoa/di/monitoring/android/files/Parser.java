@@ -6,40 +6,119 @@ import gr.uoa.di.monitoring.model.Fields;
 import gr.uoa.di.monitoring.model.Position;
 import gr.uoa.di.monitoring.model.Wifi;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
-import static gr.uoa.di.monitoring.android.files.Store.ARRAY_DELIMITER;
-import static gr.uoa.di.monitoring.android.files.Store.DELIMITER;
 import static gr.uoa.di.monitoring.android.files.Store.FILENAME_SEPA;
-import static gr.uoa.di.monitoring.android.files.Store.NEWLINE;
 
 public final class Parser {
 
 	private Parser() {}
 
 	private static final int INPUT_STREAM_BUFFER_SIZE = 8192; // vanilla default
+	/** Files this big or bigger are memory mapped instead of read */
+	private static final long MAP_THRESHOLD = 1 << 20;
+	/** Size of the chunks copied out of a mapped file to be parsed */
+	private static final int WINDOW_SIZE = 1 << 16;
 	/**
-	 * Data Class used in {@link #parse(String)} to call the appropriate static
-	 * parse() method from the relevant Data subclass.
+	 * The registered Data types, used in {@link #parse(String)} to call the
+	 * parse() method of the relevant DataType. Iterated far more often than
+	 * written to.
 	 */
-	private final static List<Class<? extends Data>> DATA_CLASSES =
-			new ArrayList<Class<? extends Data>>();
+	private final static List<DataType<?, ?>> DATA_TYPES =
+			new CopyOnWriteArrayList<DataType<?, ?>>();
 	static {
-		DATA_CLASSES.add(Battery.class);
-		DATA_CLASSES.add(Position.class);
-		DATA_CLASSES.add(Wifi.class);
+		register(Battery.TYPE);
+		register(Position.TYPE);
+		register(Wifi.TYPE);
+	}
+
+	// =========================================================================
+	// API - registry of Data types
+	// =========================================================================
+	/**
+	 * Registers a Data type so its file is parsed by {@link #parse(String)}.
+	 * The Battery, Position and Wifi types are registered when this class is
+	 * initialized.
+	 *
+	 * @param type
+	 *            the type to register
+	 * @throws IllegalArgumentException
+	 *             if a type for the same Data class or filename is already
+	 *             registered
+	 * @throws NullPointerException
+	 *             if type is null
+	 */
+	public static void register(DataType<?, ?> type) {
+		if (type == null)
+			throw new NullPointerException("DataType can't be null");
+		synchronized (DATA_TYPES) {
+			for (DataType<?, ?> registered : DATA_TYPES) {
+				if (registered.dataClass() == type.dataClass()
+					|| registered.filename().equals(type.filename()))
+					throw new IllegalArgumentException(type
+						+ " clashes with registered " + registered);
+			}
+			DATA_TYPES.add(type);
+		}
+	}
+
+	/**
+	 * Returns the registered DataType for the given Data class.
+	 *
+	 * @param dataCls
+	 *            a Data class
+	 * @return the DataType for dataCls
+	 * @throws ParserException
+	 *             if no DataType is registered for dataCls
+	 */
+	public static <D extends Data> DataType<D, ?> type(Class<D> dataCls)
+			throws ParserException {
+		for (DataType<?, ?> type : DATA_TYPES) {
+			if (type.dataClass() == dataCls) {
+				@SuppressWarnings("unchecked")
+				final DataType<D, ?> t = (DataType<D, ?>) type;
+				return t;
+			}
+		}
+		throw new ParserException("Unregistered data type : " + dataCls);
+	}
+
+	/**
+	 * Returns the registered Data types, in the order they were registered.
+	 *
+	 * @return an unmodifiable snapshot of the registered types
+	 */
+	public static List<DataType<?, ?>> types() {
+		return Collections.unmodifiableList(new ArrayList<DataType<?, ?>>(
+			DATA_TYPES));
 	}
 
 	// =========================================================================
@@ -74,28 +153,177 @@ public final class Parser {
 			String rootPath) throws ParserException {
 		Map<Class<? extends Data>, List<T>> daMap =
 				new HashMap<Class<? extends Data>, List<T>>();
-		for (Class<? extends Data> dataCls : DATA_CLASSES) {
-			Method pars = null;
-			try {
-				pars = dataCls.getMethod("parse", File.class);
-			} catch (NoSuchMethodException e) {
-				throw new ParserException("Reflection failure", e);
+		final File root = new File(rootPath);
+		for (DataType<?, ?> type : DATA_TYPES) {
+			daMap.put(type.dataClass(), Parser.<T> parse(type, root));
+		}
+		return daMap;
+	}
+
+	/**
+	 * Parses the files in rootPath directory concurrently - one task per Data
+	 * type is passed to {@code executor} - and returns a map from the Data type
+	 * to a List of Data instances, like {@link #parse(String)} does. Returns
+	 * when all the files are parsed.
+	 *
+	 * @param rootPath
+	 *            a directory containing files to be parsed
+	 * @param executor
+	 *            runs the parsing tasks
+	 * @return a Map with keys the Data classes and values Lists of data
+	 *         instances
+	 * @throws ParserException
+	 *             if parsing failed or the calling thread was interrupted while
+	 *             waiting for the tasks to complete (the interrupt status is
+	 *             set again)
+	 */
+	public static <T extends Data> Map<Class<? extends Data>, List<T>> parse(
+			String rootPath, Executor executor) throws ParserException {
+		final File root = new File(rootPath);
+		final Map<Class<? extends Data>, FutureTask<List<T>>> tasks =
+				new HashMap<Class<? extends Data>, FutureTask<List<T>>>();
+		for (final DataType<?, ?> type : DATA_TYPES) {
+			final FutureTask<List<T>> task = new FutureTask<List<T>>(
+				new Callable<List<T>>() {
+
+					@Override
+					public List<T> call() throws ParserException {
+						return Parser.<T> parse(type, root);
+					}
+				});
+			tasks.put(type.dataClass(), task);
+			executor.execute(task);
+		}
+		Map<Class<? extends Data>, List<T>> daMap =
+				new HashMap<Class<? extends Data>, List<T>>();
+		try {
+			for (Map.Entry<Class<? extends Data>, FutureTask<List<T>>> entry : tasks
+				.entrySet()) {
+				daMap.put(entry.getKey(), entry.getValue().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ParserException("Interrupted parsing " + rootPath, e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof ParserException)
+				throw (ParserException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new ParserException("Failed to parse " + rootPath, e);
+		} finally {
+			for (FutureTask<List<T>> task : tasks.values()) {
+				task.cancel(true); // no op for the completed ones
 			}
-			List<T> invoke = null;
+		}
+		return daMap;
+	}
+
+	/**
+	 * Parses the file for the given Data type in rootPath directory and passes
+	 * the data instances to {@code sink} one at a time. Unlike
+	 * {@link #parse(String)} the data are never kept in memory - meant for
+	 * servers that push the data in their own store. If there is no such file
+	 * the sink is not called.
+	 *
+	 * @param rootPath
+	 *            a directory containing files to be parsed
+	 * @param dataCls
+	 *            the type of the data to parse
+	 * @param sink
+	 *            receives the data instances in the order they appear in the
+	 *            file
+	 * @throws IOException
+	 *             if reading the file failed
+	 * @throws ParserException
+	 *             if parsing failed or no type is registered for dataCls
+	 */
+	public static <D extends Data> void stream(String rootPath,
+			Class<D> dataCls, Sink<? super D> sink) throws IOException,
+			ParserException {
+		try {
+			type(dataCls).stream(new File(rootPath), sink);
+		} catch (FileNotFoundException e) {
+			// the file was not found - no data - not a fatal error
+		}
+	}
+
+	/**
+	 * Parses the data files in the given zip, as sent by the mobile (see
+	 * {@link Persist#file}), and returns a map from the Data type to a List
+	 * of Data instances, like {@link #parse(String)} does for the unzipped
+	 * folder. Each entry is decoded as it is inflated - nothing is extracted
+	 * to disk. The entries are matched to the registered types by their name
+	 * (ignoring the folders) and the entries of a type are parsed in the
+	 * order their data were written - its segments, then its data file.
+	 *
+	 * @param archive
+	 *            a zip with data files
+	 * @return a Map with keys the Data classes and values Lists of data
+	 *         instances
+	 * @throws ParserException
+	 *             if reading the zip or parsing failed
+	 */
+	public static <T extends Data> Map<Class<? extends Data>, List<T>>
+			parseArchive(File archive) throws ParserException {
+		final Map<Class<? extends Data>, List<T>> daMap = newMap();
+		try {
+			final ZipFile zip = new ZipFile(archive);
 			try {
-				// TODO - reflection is rather awkward - drop it ?
-				invoke = (List<T>) pars.invoke(null, new File(rootPath));
-			} catch (IllegalArgumentException e) {
-				throw new ParserException("Reflection failure", e);
-			} catch (IllegalAccessException e) {
-				throw new ParserException("Reflection failure", e);
-			} catch (InvocationTargetException e) {
-				if (e.getCause() instanceof FileNotFoundException) {
-					// the file was not found - no data - not a fatal error
-					invoke = Collections.emptyList();
+				for (ZipEntry entry : dataEntries(zip)) {
+					final InputStream is = zip.getInputStream(entry);
+					try {
+						Parser.<T> parse(type(entry), is, daMap);
+					} finally {
+						try {
+							is.close();
+						} catch (IOException e) {
+							// could not close the entry ?
+							e.printStackTrace();
+						}
+					}
+				}
+			} finally {
+				try {
+					zip.close();
+				} catch (IOException e) {
+					// could not close the file ?
+					e.printStackTrace();
 				}
 			}
-			daMap.put(dataCls, invoke);
+		} catch (IOException e) {
+			throw new ParserException("Failed to read " + archive, e);
+		}
+		return daMap;
+	}
+
+	/**
+	 * Parses the data files in the zip read from the given stream - for
+	 * instance the request body of an upload - without storing the zip or
+	 * its entries anywhere. See {@link #parseArchive(File)}. The zip is read
+	 * once from start to end, so the entries of a type are parsed in the
+	 * order they appear in it - {@link Persist} writes the segments in the
+	 * order of their sequence numbers. The stream is not closed.
+	 *
+	 * @param archive
+	 *            a stream with a zip of data files
+	 * @return a Map with keys the Data classes and values Lists of data
+	 *         instances
+	 * @throws ParserException
+	 *             if reading the stream or parsing failed
+	 */
+	public static <T extends Data> Map<Class<? extends Data>, List<T>>
+			parseArchive(InputStream archive) throws ParserException {
+		final Map<Class<? extends Data>, List<T>> daMap = newMap();
+		final ZipInputStream zis = new ZipInputStream(archive);
+		try {
+			for (ZipEntry entry; (entry = zis.getNextEntry()) != null;) {
+				final DataType<?, ?> type = type(entry);
+				if (type != null) Parser.<T> parse(type, zis, daMap);
+			}
+		} catch (IOException e) {
+			throw new ParserException("Failed to read zip", e);
 		}
 		return daMap;
 	}
@@ -103,11 +331,352 @@ public final class Parser {
 	// =========================================================================
 	// API - used by the model
 	// =========================================================================
+	/**
+	 * Creates new, empty, instances of a Data subclass for the parser to fill.
+	 * Needed as the Data subclasses do not expose public constructors.
+	 *
+	 * @param <D>
+	 *            the Data subclass instantiated
+	 */
+	public interface Factory<D extends Data> {
+
+		D newInstance();
+	}
+
+	/**
+	 * Receives the data instances as they are parsed, one at a time, in the
+	 * order they appear in the input. Lets the callers of the stream() methods
+	 * process files of any size in constant memory.
+	 *
+	 * @param <D>
+	 *            the Data subclass received
+	 */
+	public interface Sink<D> {
+
+		void accept(D datum);
+	}
+
+	/**
+	 * Parses the given file and returns a list of data instances, one per entry
+	 * in the file. See {@link #stream(File, Class, Factory, Sink)}.
+	 *
+	 * @param file
+	 *            the file to parse
+	 * @param fields
+	 *            the Fields class of interest
+	 * @param factory
+	 *            creates the instances to be filled by the fields
+	 * @return a list of data instances in the order they appear in the file
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IOException
+	 *             if reading the file fails
+	 * @throws ParserException
+	 *             if the file is malformed
+	 */
+	public static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> List<D>
+			decode(File file, Class<T> fields, Factory<D> factory)
+					throws FileNotFoundException, IOException, ParserException {
+		final ListSink<D> sink = new ListSink<D>();
+		stream(file, fields, factory, sink);
+		return sink.data;
+	}
+
+	/**
+	 * Parses {@code length} bytes of {@code buffer} starting at {@code offset}
+	 * and returns a list of data instances, one per entry. The buffer is
+	 * scanned once and each field value is passed to
+	 * {@link Fields#parse(byte[], int, int, int, Data)} as a slice of the
+	 * buffer - no bytes are copied or boxed. Binary input (see {@link Store})
+	 * is recognized by its header and decoded with
+	 * {@link Fields#read(Decoder, Data)}.
+	 *
+	 * @param buffer
+	 *            the bytes to parse
+	 * @param offset
+	 *            the index of the first byte of the first entry
+	 * @param length
+	 *            the number of bytes to parse
+	 * @param fields
+	 *            the Fields class of interest
+	 * @param factory
+	 *            creates the instances to be filled by the fields
+	 * @return a list of data instances in the order they appear in the buffer
+	 * @throws ParserException
+	 *             if the bytes are malformed
+	 */
+	public static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> List<D>
+			decode(byte[] buffer, int offset, int length, Class<T> fields,
+					Factory<D> factory) throws ParserException {
+		final ListSink<D> sink = new ListSink<D>();
+		parse(buffer, offset, offset + length, EntryFormat.of(buffer, offset,
+			offset + length, fields.getEnumConstants(), factory, sink));
+		return sink.data;
+	}
+
+	/**
+	 * Parses the remaining bytes of {@code buffer} and returns a list of data
+	 * instances, one per entry. See {@link #stream(ByteBuffer, Class, Factory,
+	 * Sink)}.
+	 *
+	 * @param buffer
+	 *            the bytes to parse from its position to its limit
+	 * @param fields
+	 *            the Fields class of interest
+	 * @param factory
+	 *            creates the instances to be filled by the fields
+	 * @return a list of data instances in the order they appear in the buffer
+	 * @throws ParserException
+	 *             if the bytes are malformed
+	 */
+	public static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> List<D>
+			decode(ByteBuffer buffer, Class<T> fields, Factory<D> factory)
+					throws ParserException {
+		final ListSink<D> sink = new ListSink<D>();
+		stream(buffer, fields, factory, sink);
+		return sink.data;
+	}
+
+	/**
+	 * Parses the given file and passes the data instances to {@code sink} one
+	 * at a time, as each entry is parsed. Files smaller than
+	 * {@link #MAP_THRESHOLD} are read through a {@link FileInputStream} - see
+	 * {@link #stream(InputStream, Class, Factory, Sink)}. Bigger files are
+	 * memory mapped and parsed by {@link #stream(ByteBuffer, Class, Factory,
+	 * Sink)} so their contents are not copied through a stream buffer. Either
+	 * way memory use does not depend on the size of the file.
+	 *
+	 * @param file
+	 *            the file to parse
+	 * @param fields
+	 *            the Fields class of interest
+	 * @param factory
+	 *            creates the instances to be filled by the fields
+	 * @param sink
+	 *            receives the data instances in the order they appear in the
+	 *            file
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IOException
+	 *             if reading the file fails
+	 * @throws ParserException
+	 *             if the file is malformed - the entries before the malformed
+	 *             one have already been passed to the sink
+	 */
+	public static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> void
+			stream(File file, Class<T> fields, Factory<D> factory,
+					Sink<? super D> sink) throws FileNotFoundException,
+					IOException, ParserException {
+		if (file.length() >= MAP_THRESHOLD) {
+			stream(map(file), fields, factory, sink);
+			return;
+		}
+		final FileInputStream fis = new FileInputStream(file);
+		try {
+			stream(fis, fields, factory, sink);
+		} finally {
+			try {
+				fis.close();
+			} catch (IOException e) {
+				// could not close the file ?
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Parses the remaining bytes of {@code buffer} and passes the data
+	 * instances to {@code sink} one at a time. Meant for memory mapped files
+	 * (see {@link #map(File)}) - for buffers backed by an array the array is
+	 * scanned in place. Otherwise the bytes are copied in chunks of
+	 * {@link #WINDOW_SIZE} bytes (or bigger if an entry does not fit) to a
+	 * byte[] which is reused for the whole buffer. The position of the buffer
+	 * is advanced to its limit. Several threads may parse disjoint regions of
+	 * the same mapped file, each via its own {@link ByteBuffer#duplicate()} -
+	 * the regions must start at the beginning of an entry. The format of the
+	 * bytes is detected from their start - see {@link Store#isBinary}.
+	 *
+	 * @param buffer
+	 *            the bytes to parse from its position to its limit
+	 * @param fields
+	 *            the Fields class of interest
+	 * @param factory
+	 *            creates the instances to be filled by the fields
+	 * @param sink
+	 *            receives the data instances in the order they appear in the
+	 *            buffer
+	 * @throws ParserException
+	 *             if the bytes are malformed
+	 */
+	public static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> void
+			stream(ByteBuffer buffer, Class<T> fields, Factory<D> factory,
+					Sink<? super D> sink) throws ParserException {
+		stream(buffer, fields.getEnumConstants(), factory, sink, null);
+	}
+
+	/**
+	 * Parses the bytes read from {@code is} and passes the data instances to
+	 * {@code sink} one at a time. The stream is read in chunks of
+	 * {@link #WINDOW_SIZE} bytes (or bigger if an entry does not fit) into a
+	 * byte[] which is reused till the end of the stream - so do not pass in a
+	 * BufferedInputStream. The stream is not closed. The format of the stream
+	 * is detected from its first bytes - see {@link Store#isBinary}.
+	 *
+	 * @param is
+	 *            the stream to parse
+	 * @param fields
+	 *            the Fields class of interest
+	 * @param factory
+	 *            creates the instances to be filled by the fields
+	 * @param sink
+	 *            receives the data instances in the order they appear in the
+	 *            stream
+	 * @throws IOException
+	 *             if reading the stream fails
+	 * @throws ParserException
+	 *             if the bytes are malformed
+	 */
+	public static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> void
+			stream(InputStream is, Class<T> fields, Factory<D> factory,
+					Sink<? super D> sink) throws IOException, ParserException {
+		stream(is, fields.getEnumConstants(), factory, sink, null);
+	}
+
+	/**
+	 * Parses the given file on several threads and returns a list of data
+	 * instances, one per entry in the file. The file is memory mapped and split
+	 * in up to {@code parallelism} byte ranges of at least
+	 * {@link #MAP_THRESHOLD} bytes each, cut at entry boundaries (after a
+	 * NEWLINE, or at a keyframe found via the lengths of the entries for
+	 * binary files). All ranges but the first are decoded by tasks submitted to
+	 * {@code executor} - the first one is decoded in the calling thread. The
+	 * results are concatenated in the order of the ranges, so the returned
+	 * list is the same as the one returned by
+	 * {@link #decode(File, Class, Factory)}. The Fields must not keep state
+	 * between entries. Files smaller than twice the threshold are decoded in
+	 * the calling thread.
+	 *
+	 * @param file
+	 *            the file to parse
+	 * @param fields
+	 *            the Fields class of interest
+	 * @param factory
+	 *            creates the instances to be filled by the fields, must be
+	 *            thread safe
+	 * @param executor
+	 *            runs the decoding tasks
+	 * @param parallelism
+	 *            the maximum number of ranges to split the file to
+	 * @return a list of data instances in the order they appear in the file
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IOException
+	 *             if reading the file fails
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for the tasks to complete
+	 * @throws ParserException
+	 *             if the file is malformed
+	 */
+	public static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> List<D>
+			decode(File file, final Class<T> fields, final Factory<D> factory,
+					ExecutorService executor, int parallelism)
+					throws FileNotFoundException, IOException, ParserException {
+		final long size = file.length();
+		final int ranges = (int) Math.min(parallelism, size / MAP_THRESHOLD);
+		if (ranges < 2) return decode(file, fields, factory);
+		final MappedByteBuffer mapped = map(file);
+		final int limit = mapped.limit();
+		final T[] daFields = fields.getEnumConstants();
+		// ranges but the first have no header - the format is passed to them
+		final byte[] header = new byte[Math.min(Store.HEADER_LENGTH, limit)];
+		mapped.duplicate().get(header);
+		final EntryFormat<D, T> format = EntryFormat.of(header, 0,
+			header.length, daFields, factory, new ListSink<D>());
+		final List<Future<List<D>>> futures = new ArrayList<Future<List<D>>>();
+		int from = 0, to = 0, entry = format.headerLength();
+		ByteBuffer first = null;
+		for (int i = 1; i <= ranges && from < limit; ++i, from = entry = to) {
+			to = (i == ranges) ? limit : format.nextEntry(mapped, entry,
+				(int) (size * i / ranges), limit);
+			final ByteBuffer range = mapped.duplicate();
+			range.limit(to).position(from);
+			if (first == null) {
+				first = range;
+				continue;
+			}
+			futures.add(executor.submit(new Callable<List<D>>() {
+
+				@Override
+				public List<D> call() throws ParserException {
+					final ListSink<D> sink = new ListSink<D>();
+					stream(range, daFields, factory, sink, format
+						.forRange(sink));
+					return sink.data;
+				}
+			}));
+		}
+		try {
+			final List<D> data = decode(first, fields, factory);
+			for (Future<List<D>> future : futures) {
+				data.addAll(future.get());
+			}
+			return data;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted parsing " + file);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof ParserException)
+				throw (ParserException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new ParserException("Failed to parse " + file, e);
+		} finally {
+			for (Future<List<D>> future : futures) {
+				future.cancel(true); // no op for the completed ones
+			}
+		}
+	}
+
+	/**
+	 * Maps the given file in memory, read only. The mapping stays valid after
+	 * the file is closed - that happens before this method returns.
+	 *
+	 * @param file
+	 *            the file to map
+	 * @return a buffer containing the whole file
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IOException
+	 *             if the file can't be mapped, for instance if it is bigger
+	 *             than {@link Integer#MAX_VALUE} bytes
+	 */
+	public static MappedByteBuffer map(File file) throws FileNotFoundException,
+			IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(file + " is too big : " + size);
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// could not close the file ?
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Meant to be used in the server so uses Lists internally instead of
-	 * arrays. Buffers the input stream so do not pass in a BufferedInputStream.
-	 * See <a href="http://stackoverflow.com/questions/19067244/">What is the
-	 * result of buffering a buffered stream in java?</a>
+	 * arrays. Reads the whole stream in memory and then parses it. Kept as an
+	 * adapter around the byte[] parser - prefer
+	 * {@link #decode(File, Class, Factory)} which does not box the bytes.
+	 * Text files only.
 	 *
 	 * @param is
 	 *            an input stream, should be a FileInputStream of a file
@@ -118,115 +687,289 @@ public final class Parser {
 	 *         from the fields to either a list of bytes or a list of lists of
 	 *         bytes for fields where isList() returns true
 	 * @throws IOException
+	 *             if reading fails or the stream is in the binary format
 	 */
 	public static <D, T extends Enum<T> & Fields<?, ?, D>> List<EnumMap<T, D>>
-			getEntries(InputStream is, Class<T> fields) throws IOException {
-		final BufferedInputStream bis = new BufferedInputStream(is,
+			getEntries(InputStream is, final Class<T> fields)
+					throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(
 			INPUT_STREAM_BUFFER_SIZE);
-		final List<List<Byte>> entries = new ArrayList<List<Byte>>();
 		{
-			// get the entries
-			boolean kaboom = true;
-			for (int c = bis.read(), line = -1; c != -1; c = bis.read()) {
-				if (kaboom) {
-					entries.add(new ArrayList<Byte>());
-					kaboom = false;
-					++line;
-				}
-				if (c == NEWLINE) kaboom = true;
-				else entries.get(line).add((byte) c);
+			final byte[] buf = new byte[INPUT_STREAM_BUFFER_SIZE];
+			for (int read = is.read(buf); read != -1; read = is.read(buf)) {
+				bos.write(buf, 0, read);
 			}
 		}
-		// friggin FIXME : malformed files ? empty lines ?
+		final byte[] bytes = bos.toByteArray();
+		if (Store.isBinary(bytes, 0, bytes.length))
+			throw new IOException("Binary data can't be read as entries");
 		final boolean hasLists = hasLists(fields);
-		// this is the only unchecked warning
-		@SuppressWarnings({ "unchecked", "rawtypes" })
-		GetEntries<D, T> getEntries = hasLists ? new GetByteListEntries(fields)
-				: new GetByteEntries(fields);
-		return getEntries.invoke(entries);
+		final List<EnumMap<T, D>> entries = new ArrayList<EnumMap<T, D>>();
+		try {
+			EntryFormat.scan(bytes, 0, bytes.length, fields.getEnumConstants(),
+				new EntryFormat.FieldVisitor<T>() {
+
+					private EnumMap<T, D> map;
+
+					@Override
+					void startEntry() {
+						map = new EnumMap<T, D>(fields);
+						for (T daField : fields.getEnumConstants()) {
+							map.put(daField, Parser.<D> newValue(hasLists));
+						}
+						entries.add(map);
+					}
+
+					// the only unchecked casts
+					@Override
+					@SuppressWarnings("unchecked")
+					void field(T field, byte[] array, int off, int len,
+							int index) {
+						final List<Byte> lb = new ArrayList<Byte>(len);
+						for (int i = off, end = off + len; i < end; ++i) {
+							lb.add(array[i]);
+						}
+						if (hasLists) ((List<List<Byte>>) map.get(field))
+							.add(lb);
+						else map.put(field, (D) lb);
+					}
+
+					@Override
+					void endList(T field, int size) {}
+
+					@Override
+					void endEntry() {}
+				});
+		} catch (ParserException e) {
+			throw new AssertionError(e); // the visitor does not throw
+		}
+		return entries;
 	}
 
 	// =========================================================================
-	// Private helpers of getEntries()
+	// Private helpers
 	// =========================================================================
-	private abstract static class GetEntries<D, T extends Enum<T> & Fields<?, ?, D>> {
-
-		Class<T> fields;
-
-		public GetEntries(Class<T> fields) {
-			this.fields = fields;
-		}
-
-		public List<EnumMap<T, D>> invoke(List<List<Byte>> entries) {
-			final List<EnumMap<T, D>> daBytes = new ArrayList<EnumMap<T, D>>();
-			final int numOfEntries = entries.size();
-			for (int currentEntry = 0; currentEntry < numOfEntries; ++currentEntry) {
-				List<Byte> entry = entries.get(currentEntry);
-				daBytes.add(new EnumMap<T, D>(fields));
-				EnumMap<T, D> map = daBytes.get(currentEntry);
-				// and now the party - getting the actual fields for this entry
-				for (T daField : fields.getEnumConstants()) {
-					List<Byte> field = new ArrayList<Byte>();
-					int position = 0;
-					for (byte b : entry) {
-						++position;
-						if (b == DELIMITER) {
-							entry = new ArrayList<Byte>(entry.subList(position,
-								entry.size())); // chop off the bytes I read
-							break;
-						}
-						field.add(b);
-					} // got the field bytes
-					map.put(daField, getFieldData(daField, field));
-				}
+	/**
+	 * Parses the file of the given Data type in root directory. Returns an
+	 * empty list if there is no file for this Data type.
+	 */
+	private static <T extends Data> List<T> parse(DataType<?, ?> type,
+			File root) throws ParserException {
+		try {
+			@SuppressWarnings("unchecked")
+			final List<T> data = (List<T>) type.parse(root);
+			return data;
+		} catch (FileNotFoundException e) {
+			// the file was not found - no data - not a fatal error
+			return Collections.emptyList();
+		} catch (IOException e) {
+			throw new ParserException("Failed to read " + type.file(root), e);
+		}
+	}
+
+	/** A map with an empty list for each registered Data type */
+	static <T extends Data> Map<Class<? extends Data>, List<T>> newMap() {
+		final Map<Class<? extends Data>, List<T>> daMap =
+				new HashMap<Class<? extends Data>, List<T>>();
+		for (DataType<?, ?> type : DATA_TYPES) {
+			daMap.put(type.dataClass(), new ArrayList<T>());
+		}
+		return daMap;
+	}
+
+	/**
+	 * Returns the entries of the zip that are data files or segments of a
+	 * registered type, in the order their data were written.
+	 */
+	static List<ZipEntry> dataEntries(ZipFile zip) {
+		final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+		for (Enumeration<? extends ZipEntry> e = zip.entries(); e
+			.hasMoreElements();) {
+			final ZipEntry entry = e.nextElement();
+			if (type(entry) != null) entries.add(entry);
+		}
+		Collections.sort(entries, new Comparator<ZipEntry>() {
+
+			@Override
+			public int compare(ZipEntry e1, ZipEntry e2) {
+				return Store.compareWriteOrder(name(e1), name(e2));
 			}
-			return daBytes;
+		});
+		return entries;
+	}
+
+	/** The name of the zip entry without its folders */
+	private static String name(ZipEntry entry) {
+		final String name = entry.getName();
+		return name.substring(name.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Returns the registered Data type whose data file or segment is the
+	 * given zip entry, null if there is none.
+	 */
+	static DataType<?, ?> type(ZipEntry entry) {
+		if (entry.isDirectory()) return null;
+		final String name = name(entry);
+		for (DataType<?, ?> type : DATA_TYPES) {
+			if (type.filename().equals(name)
+				|| Store.isSegment(name, type.filename())) return type;
 		}
+		return null;
+	}
+
+	/**
+	 * Parses the bytes read from is as a file of the given Data type, adding
+	 * the data to the list of the type in daMap.
+	 */
+	private static <T extends Data> void parse(DataType<?, ?> type,
+			InputStream is, Map<Class<? extends Data>, List<T>> daMap)
+			throws IOException, ParserException {
+		type.stream(is, new MapSink<T>(daMap.get(type.dataClass())));
+	}
 
-		abstract D getFieldData(T daField, List<Byte> field);
+	/**
+	 * Parses the remaining bytes of buffer as a file of the given Data type,
+	 * adding the data to the list of the type in daMap.
+	 */
+	static <T extends Data> void parse(DataType<?, ?> type, ByteBuffer buffer,
+			Map<Class<? extends Data>, List<T>> daMap) throws ParserException {
+		type.stream(buffer, new MapSink<T>(daMap.get(type.dataClass())));
 	}
 
-	private final static class GetByteEntries<T extends Enum<T> & Fields<?, ?, List<Byte>>>
-			extends GetEntries<List<Byte>, T> {
+	/** Adds the data of any type to a list of the map of parse() */
+	private static final class MapSink<T extends Data> implements Sink<Data> {
+
+		private final List<T> data;
 
-		public GetByteEntries(Class<T> fields) {
-			super(fields);
+		MapSink(List<T> data) {
+			this.data = data;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void accept(Data datum) {
+			data.add((T) datum);
 		}
+	}
+
+	private static final class ListSink<D> implements Sink<D> {
+
+		final List<D> data = new ArrayList<D>();
 
 		@Override
-		List<Byte> getFieldData(T daField, List<Byte> field) {
-			return field;
+		public void accept(D datum) {
+			data.add(datum);
 		}
 	}
 
-	private final static class GetByteListEntries<T extends Enum<T> & Fields<?, ?, List<List<Byte>>>>
-			extends GetEntries<List<List<Byte>>, T> {
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
 
-		public GetByteListEntries(Class<T> fields) {
-			super(fields);
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
 		}
 
 		@Override
-		List<List<Byte>> getFieldData(T daField, List<Byte> field) {
-			final List<List<Byte>> fieldEntries = new ArrayList<List<Byte>>();
-			if (!daField.isList()) {
-				fieldEntries.add(field); // one entry only
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+
+	/**
+	 * Parses the bytes of buffer from {@code from} to {@code to} in the given
+	 * format, skipping the header if from is the start of the input.
+	 */
+	private static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> void
+			parse(byte[] buffer, int from, int to, EntryFormat<D, T> format)
+					throws ParserException {
+		from = format.entries(buffer, from + format.headerLength(), to);
+		format.end(buffer, from, to);
+	}
+
+	/**
+	 * Parses the remaining bytes of buffer in the given format - or in the
+	 * format detected from its start if format is null, when the header is
+	 * skipped. See {@link #stream(ByteBuffer, Class, Factory, Sink)}.
+	 */
+	private static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> void
+			stream(ByteBuffer buffer, T[] fields, Factory<D> factory,
+					Sink<? super D> sink, EntryFormat<D, T> format)
+					throws ParserException {
+		if (buffer.hasArray()) {
+			final int position = buffer.position();
+			final int from = buffer.arrayOffset() + position;
+			final int to = from + buffer.limit() - position;
+			final byte[] array = buffer.array();
+			if (format == null) {
+				parse(array, from, to, EntryFormat.of(array, from, to, fields,
+					factory, sink));
 			} else {
-				// parse the field
-				boolean kaboom = true;
-				int fieldEntry = -1;
-				for (byte b : field) {
-					if (kaboom) {
-						fieldEntries.add(new ArrayList<Byte>());
-						kaboom = false;
-						++fieldEntry;
-					}
-					if (b == ARRAY_DELIMITER) kaboom = true;
-					else fieldEntries.get(fieldEntry).add(b);
-				}
+				format.end(array, format.entries(array, from, to), to);
+			}
+			buffer.position(buffer.limit());
+			return;
+		}
+		try {
+			stream(new ByteBufferInputStream(buffer), fields, factory, sink,
+				format);
+		} catch (IOException e) {
+			throw new AssertionError(e); // ByteBufferInputStream won't throw
+		}
+	}
+
+	/**
+	 * Parses the bytes read from is in the given format - or in the format
+	 * detected from its first bytes if format is null, when the header is
+	 * skipped. See {@link #stream(InputStream, Class, Factory, Sink)}.
+	 */
+	private static <D extends Data, T extends Enum<T> & Fields<?, D, ?>> void
+			stream(InputStream is, T[] fields, Factory<D> factory,
+					Sink<? super D> sink, EntryFormat<D, T> format)
+					throws IOException, ParserException {
+		byte[] window = new byte[WINDOW_SIZE];
+		int filled = 0, start = 0; // start : of the first unparsed entry
+		for (int read; (read = is.read(window, filled, window.length
+			- filled)) != -1;) {
+			filled += read;
+			if (format == null) {
+				if (filled < Store.HEADER_LENGTH) continue;
+				format = EntryFormat.of(window, 0, filled, fields, factory,
+					sink);
+				start = format.headerLength();
+			}
+			// the index after the last complete entry in the window
+			final int end = format.entries(window, start, filled);
+			filled -= end;
+			System.arraycopy(window, end, window, 0, filled);
+			start = 0;
+			if (filled == window.length) { // an entry longer than the window
+				final byte[] bigger = new byte[window.length * 2];
+				System.arraycopy(window, 0, bigger, 0, filled);
+				window = bigger;
 			}
-			return fieldEntries;
 		}
+		if (format == null) { // shorter than a header
+			format = EntryFormat.of(window, 0, filled, fields, factory, sink);
+			start = format.headerLength();
+		}
+		format.end(window, start, filled); // the last text entry, no NEWLINE
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <D> D newValue(boolean isListOfLists) {
+		return (D) (isListOfLists ? new ArrayList<List<Byte>>()
+				: new ArrayList<Byte>());
 	}
 
 	// That's what you get for nor being able to override static methods
@@ -5,48 +5,333 @@ import android.content.Context;
 import gr.uoa.di.android.helpers.DeviceIdentifier;
 import gr.uoa.di.android.helpers.DeviceIdentifier.DeviceIDException;
 import gr.uoa.di.android.helpers.files.FileUtils;
-import gr.uoa.di.android.helpers.files.Writer;
+import gr.uoa.di.java.helpers.Zip;
 import gr.uoa.di.java.helpers.Zip.CompressException;
+import gr.uoa.di.monitoring.model.Data;
 import gr.uoa.di.monitoring.model.Fields;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static gr.uoa.di.monitoring.android.files.Store.ARRAY_DELIMITER;
 import static gr.uoa.di.monitoring.android.files.Store.DELIMITER;
 import static gr.uoa.di.monitoring.android.files.Store.FILENAME_SEPA;
 import static gr.uoa.di.monitoring.android.files.Store.NEWLINE;
+import static gr.uoa.di.monitoring.android.files.Store.REPEAT;
 
 public final class Persist {
 
 	private Persist() {}
 
+	/**
+	 * @deprecated no longer guards the data files - writes to different files
+	 *             proceed in parallel and {@link #file(Context)} and
+	 *             {@link #deleteInternalFiles(Context)} stop the writers
+	 *             themselves
+	 */
+	@Deprecated
 	public static final Object FILE_STORE_LOCK = new Object();
+	/**
+	 * Shared by the writers - each one also locks its {@link DataFile} so
+	 * writers to different files do not contend - and held exclusively while
+	 * the folder is zipped or deleted.
+	 */
+	private static final ReadWriteLock STORE_LOCK = new ReentrantReadWriteLock();
 	private static final String NO_IMEI = "NO_IMEI";
 	/** ALWAYS access this via {@link #getRootFolder(Context)} */
 	private static volatile File sRootFolder; // TODO : cache but can lead to
 	// NPEs - ask : enforce access to static fields via getter
+	/** Whether new data files are written in the binary format */
+	private static volatile boolean sBinary;
+	/**
+	 * The data files written to so far, with their pending entries and
+	 * format. Files keep the format they were created in. Entries are added
+	 * holding the STORE_LOCK shared and removed holding it exclusively.
+	 */
+	private static final ConcurrentMap<File, DataFile> FILES = new ConcurrentHashMap<File, DataFile>();
+	/** Capacity of the queue of entries in asynchronous mode */
+	private static final int QUEUE_CAPACITY = 1024;
+	/** Guards sSequence */
+	private static final Object SEQUENCE_LOCK = new Object();
+	/** The last segment sequence number used, -1 till looked up */
+	private static long sSequence = -1;
+	/** The last segment sequence number zipped, -1 if none */
+	private static volatile long sZipped = -1;
+	/** Whether a zip was made since the process started, even if empty */
+	private static volatile boolean sArchived;
+	private static volatile int sCompressionLevel = Zip.ADAPTIVE_LEVEL;
+	private static volatile Executor sCompressionExecutor;
+	/** Whether saveData() queues the data - see {@link #setAsync(boolean)} */
+	private static volatile boolean sAsync;
+	/** The entries to be written, null till asynchronous mode is first on */
+	private static volatile WriteQueue<Entry<?>> sQueue;
+	private static volatile Overflow sOverflow = Overflow.BLOCK;
+	/** The heartbeat of the change only mode, 0 if it is off */
+	private static volatile long sHeartbeat;
+	/** Writes the entries pending for {@link DataFile#FLUSH_DELAY_MILLIS} */
+	private static final ScheduledExecutorService FLUSHER = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "Persist flusher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * What {@link #saveData(Context, DataType, Data, List)} does in
+	 * asynchronous mode when the queue of entries to be written is full.
+	 */
+	public enum Overflow {
+		/** Wait till the writer makes room - no data is lost */
+		BLOCK,
+		/** Drop the oldest entry in the queue */
+		DROP_OLDEST,
+		/**
+		 * Drop the oldest entry in the queue for the same file - so a sensor
+		 * sampling too fast does not push out the data of the others. Waits
+		 * as BLOCK if there is none
+		 */
+		COALESCE
+	}
 
 	// =========================================================================
 	// Public API - called by Model to store data
 	// =========================================================================
+	/**
+	 * Persists the given bytes as a text entry in the given data file. The
+	 * entries are always in the text format - if the file is binary it is
+	 * rolled into a segment first, so the entry starts a new text file. Use
+	 * {@link #saveData(Context, DataType, Data, List)} to persist data in the
+	 * format set by {@link #setBinaryFormat(boolean)}.
+	 */
 	public static void saveData(Context ctx, String filename,
 			List<byte[]> listByteArrays) throws FileNotFoundException,
 			IOException {
 		// internal storage
-		persist(dataFileInInternalStorage(getRootFolder(ctx), filename),
-			listByteArrays);
+		final File file = dataFileInInternalStorage(getRootFolder(ctx),
+			filename);
+		final Lock shared = STORE_LOCK.readLock();
+		shared.lock();
+		try {
+			final DataFile data = dataFile(file);
+			synchronized (data) {
+				endRun(data); // no datum to repeat after this entry
+				data.last = null;
+				textFormat(data);
+				persist(data, listByteArrays);
+			}
+		} finally {
+			shared.unlock();
+		}
 	}
 
+	/**
+	 * Persists the given bytes as a text entry of the given fields in the
+	 * given data file - rolling it into a segment first if it is binary, as
+	 * {@link #saveData(Context, String, List)} does.
+	 */
 	public static <T extends Enum<T> & Fields<?, ?, ?>> void saveData(
 			Context ctx, String filename,
 			List<List<byte[]>> listOfListsOfByteArrays, Class<T> fields)
 			throws IOException {
 		// internal storage
-		persist(dataFileInInternalStorage(getRootFolder(ctx), filename),
-			fields, listOfListsOfByteArrays);
+		final File file = dataFileInInternalStorage(getRootFolder(ctx),
+			filename);
+		final Lock shared = STORE_LOCK.readLock();
+		shared.lock();
+		try {
+			final DataFile data = dataFile(file);
+			synchronized (data) {
+				endRun(data); // no datum to repeat after this entry
+				data.last = null;
+				textFormat(data);
+				persist(data, fields, listOfListsOfByteArrays);
+			}
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * Persists the given datum in the file of its type. If the file is in the
+	 * binary format (see {@link Store}) the datum is encoded by its Fields
+	 * (see {@link Fields#write(Data, Encoder)}), otherwise the given bytes
+	 * are persisted as in {@link #saveData(Context, String, List, Class)}.
+	 * New files are created in the format set by
+	 * {@link #setBinaryFormat(boolean)}, existing ones keep their format - so
+	 * the format can be changed without breaking files not yet sent. In
+	 * asynchronous mode (see {@link #setAsync(boolean)}) the datum is queued
+	 * to be written by a background thread and this method returns at once.
+	 *
+	 * @param ctx
+	 *            needed to retrieve the internal directory
+	 * @param type
+	 *            the type of the datum
+	 * @param datum
+	 *            the datum as filled in by the getData() of its Fields
+	 * @param listOfListsOfByteArrays
+	 *            the bytes returned by the getData() of the Fields, one list
+	 *            per field
+	 * @throws IOException
+	 *             if writing fails - in asynchronous mode the failures of
+	 *             the writer thread are logged instead, and this is thrown
+	 *             only if the writer thread died
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for room in the queue of the
+	 *             asynchronous mode - the datum is not saved
+	 */
+	public static <D extends Data> void saveData(Context ctx,
+			DataType<D, ?> type, D datum,
+			List<List<byte[]>> listOfListsOfByteArrays) throws IOException {
+		final File file = dataFileInInternalStorage(getRootFolder(ctx),
+			type.filename());
+		final WriteQueue<Entry<?>> queue = sQueue;
+		if (sAsync && queue != null) {
+			queue.put(new Entry<D>(file, type, datum, listOfListsOfByteArrays),
+				file);
+			return;
+		}
+		final Lock shared = STORE_LOCK.readLock();
+		shared.lock();
+		try {
+			final DataFile data = dataFile(file);
+			synchronized (data) {
+				persist(data, type, datum, listOfListsOfByteArrays);
+			}
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * Writes the entries buffered in memory to the data files. Entries are
+	 * written in batches - when enough of them are pending or at most
+	 * {@link DataFile#FLUSH_DELAY_MILLIS} after they were saved - so call
+	 * this before accessing the files directly. In asynchronous mode first
+	 * waits for the entries queued before the call to be written. Called by
+	 * {@link #file(Context)} and {@link #availableData(Context)}.
+	 *
+	 * @throws IOException
+	 *             if writing any of the files fails - the others are written
+	 *             anyway - or if the writer thread of the asynchronous mode
+	 *             died before writing the queued entries
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for the queued entries
+	 */
+	public static void flush() throws IOException {
+		final WriteQueue<Entry<?>> queue = sQueue;
+		if (queue != null) queue.drain();
+		flushFiles();
+	}
+
+	/**
+	 * Turns the asynchronous mode on or off - off by default. In
+	 * asynchronous mode {@link #saveData(Context, DataType, Data, List)}
+	 * queues the data and returns, and a single background thread writes
+	 * them in batches. The queue holds {@value #QUEUE_CAPACITY} entries -
+	 * see {@link #setOverflow(Overflow)}. Turning it off does not discard
+	 * the entries already queued - they are still written by the background
+	 * thread.
+	 *
+	 * @param async
+	 *            true for asynchronous mode
+	 */
+	public static synchronized void setAsync(boolean async) {
+		if (async && sQueue == null) sQueue = newQueue();
+		sAsync = async;
+	}
+
+	/**
+	 * Sets what happens in asynchronous mode when the queue is full -
+	 * {@link Overflow#BLOCK} by default.
+	 *
+	 * @param overflow
+	 *            the policy
+	 */
+	public static synchronized void setOverflow(Overflow overflow) {
+		if (overflow == null)
+			throw new NullPointerException("Overflow policy can't be null");
+		sOverflow = overflow;
+		final WriteQueue<Entry<?>> queue = sQueue;
+		if (queue != null) queue.overflow(overflow);
+	}
+
+	/**
+	 * Sets how {@link #file(Context)} compresses the data - by default with a
+	 * level picked by the size of the data (see {@link Zip#level(long)}) in
+	 * the calling thread. Pass a lower level to save battery, for instance
+	 * when it is low.
+	 *
+	 * @param level
+	 *            the {@link java.util.zip.Deflater} compression level (0-9)
+	 *            or {@link Zip#ADAPTIVE_LEVEL}
+	 * @param executor
+	 *            compresses the data files in parallel, null to compress them
+	 *            in the calling thread
+	 */
+	public static void setCompression(int level, Executor executor) {
+		if (level != Zip.ADAPTIVE_LEVEL && (level < 0 || level > 9))
+			throw new IllegalArgumentException("Invalid level : " + level);
+		sCompressionLevel = level;
+		sCompressionExecutor = executor;
+	}
+
+	/**
+	 * Turns the change only mode on or off - off by default. In change only
+	 * mode {@link #saveData(Context, DataType, Data, List)} does not write a
+	 * datum that is {@link Data#fairlyEqual(Data) fairlyEqual} to the one
+	 * last written in its file - a parked phone reports the same position
+	 * and networks over and over. Instead a repeat entry holding just the
+	 * time is written at most every {@code heartbeatMillis}, and when the
+	 * data change for the last datum skipped. The parser expands a repeat
+	 * entry to a copy of the datum before it with the time of the entry - so
+	 * the data parsed hold the first datum of each run of equal ones, one
+	 * per heartbeat and the last one of the run. Repeat entries can't be
+	 * parsed by older versions of the Parser.
+	 *
+	 * @param heartbeatMillis
+	 *            the longest time between two entries of a run of equal data,
+	 *            0 to turn the mode off
+	 * @throws IllegalArgumentException
+	 *             if heartbeatMillis is negative
+	 */
+	public static void setChangesOnly(long heartbeatMillis) {
+		if (heartbeatMillis < 0)
+			throw new IllegalArgumentException("Negative heartbeat : "
+				+ heartbeatMillis);
+		sHeartbeat = heartbeatMillis;
+	}
+
+	/**
+	 * Sets the format new data files are created in - the text one by
+	 * default. Files already created keep their format.
+	 *
+	 * @param binary
+	 *            true for the binary format
+	 */
+	public static void setBinaryFormat(boolean binary) {
+		sBinary = binary;
 	}
 
 	// =========================================================================
@@ -65,12 +350,17 @@ public final class Persist {
 	 *             if the internal directory can't be created
 	 */
 	public static boolean availableData(Context ctx) throws IOException {
+		flush();
 		return !FileUtils.isEmptyOrAbsent(getRootFolder(ctx)); // won't be
 		// absent, getRootFolder() will create it
 	}
 
 	/**
-	 * Deletes the files stored in the internal application directory.
+	 * Deletes the data files zipped by the last call to {@link #file(Context)}
+	 * - the data saved after that call are kept. If no data files were zipped
+	 * nothing is deleted. If file() was not called since the process started
+	 * deletes all the files stored in the internal application directory,
+	 * along with the data not yet written.
 	 *
 	 * @param ctx
 	 *            needed to retrieve the internal directory
@@ -80,20 +370,52 @@ public final class Persist {
 	 */
 	public static boolean deleteInternalFiles(Context ctx) {
 		boolean deleted = true;
+		final long zipped = sZipped;
+		if (zipped >= 0) {
+			// sealed segments are not written to - no locking needed
+			try {
+				for (File f : FileUtils.listFiles(getRootFolder(ctx))) {
+					final long sequence = Store.sequence(f.getName());
+					if (sequence >= 0 && sequence <= zipped)
+						deleted &= f.delete();
+				}
+			} catch (IOException e) {
+				return false;
+			}
+			return deleted;
+		}
+		if (sArchived) return true; // the zips were empty
+		final Lock exclusive = STORE_LOCK.writeLock();
+		exclusive.lock();
 		try {
+			// the entries not yet written go with the files
+			for (DataFile data : FILES.values()) {
+				synchronized (data) {
+					data.discard();
+					data.close();
+				}
+			}
+			FILES.clear();
 			for (File f : FileUtils.listFiles(Persist.getRootFolder(ctx))) {
 				deleted &= f.delete();
 			}
 		} catch (IOException e) {
-			// the directory does not exist and getRootFolder() failed to create
-			// it
+			// the directory does not exist and getRootFolder() failed to
+			// create it
 			return false;
+		} finally {
+			exclusive.unlock();
 		}
 		return deleted;
 	}
 
 	/**
-	 * Returns a zip file containing the internal folder with the data files.
+	 * Returns a zip file containing the data files in the internal folder.
+	 * The data files are rolled into sealed segments first (see
+	 * {@link Store#segment(String, long)}), after the entries buffered in
+	 * memory are written to them. Only the sealed segments are zipped - they
+	 * are not written to any more - so writers do not wait for the zip and
+	 * append to new data files meanwhile.
 	 *
 	 * @param ctx
 	 *            Context needed to access the internal storage
@@ -103,11 +425,15 @@ public final class Persist {
 	 *             can't be created
 	 */
 	public static File file(Context ctx) throws IOException {
+		final File root = getRootFolder(ctx);
+		final List<File> segments = new ArrayList<File>();
+		final long last = seal(root, segments);
 		try {
-			final String rootPath = getRootFolder(ctx).getAbsolutePath();
-			final String destination = filename(rootPath);
-			return gr.uoa.di.java.helpers.Zip.zipFolder(rootPath, destination)
-				.getFile();
+			final String destination = filename(root.getAbsolutePath());
+			final File zip = Zip.zipFiles(segments, root.getName(),
+				destination, sCompressionLevel, sCompressionExecutor).getFile();
+			zipped(last);
+			return zip;
 			// final String backFilename = System.currentTimeMillis() + ".zip";
 			// FileUtils.copyFileFromInternalToExternalStorage(destination,
 			// LOG_DIR, backFilename);
@@ -116,39 +442,231 @@ public final class Persist {
 		}
 	}
 
+	/**
+	 * Writes the zip {@link #file(Context)} would return to the given stream
+	 * instead - no zip file is created, so no flash space or I/O is spent on
+	 * it, and the data files are compressed while the zip is sent. The zip
+	 * holds the sealed segments in a folder named as the internal folder.
+	 * Once the zip is sent {@link #deleteInternalFiles(Context)} deletes the
+	 * segments written to it. The stream is flushed but not closed - to write
+	 * to a channel wrap it with
+	 * {@link java.nio.channels.Channels#newOutputStream}.
+	 *
+	 * @param ctx
+	 *            Context needed to access the internal storage
+	 * @param out
+	 *            the stream the zip is written to, typically the upload
+	 *            stream
+	 * @throws IOException
+	 *             if the internal folder can't be accessed or the zip can't be
+	 *             written - part of it may have been written to the stream
+	 */
+	public static void writeArchive(Context ctx, OutputStream out)
+			throws IOException {
+		final File root = getRootFolder(ctx);
+		final List<File> segments = new ArrayList<File>();
+		final long last = seal(root, segments);
+		try {
+			Zip.zipFiles(segments, root.getName(), out, sCompressionLevel,
+				sCompressionExecutor);
+			zipped(last);
+		} catch (CompressException e) {
+			throw new IOException("Unable to write zip :" + e);
+		}
+	}
+
 	// private persist methods
+	/**
+	 * Records that the segments up to the given sequence number were zipped -
+	 * -1 if none were sealed, in which case the segments zipped before are
+	 * still the ones {@link #deleteInternalFiles(Context)} deletes.
+	 */
+	private static void zipped(long last) {
+		if (last >= 0) sZipped = last;
+		sArchived = true;
+	}
+
+	/**
+	 * Writes the entries buffered in memory to the data files - see
+	 * {@link #flush()}.
+	 */
+	private static void flushFiles() throws IOException {
+		final Lock shared = STORE_LOCK.readLock();
+		shared.lock();
+		try {
+			IOException failed = null;
+			for (DataFile data : FILES.values()) {
+				synchronized (data) {
+					try {
+						data.flush();
+					} catch (IOException e) {
+						failed = e;
+					}
+				}
+			}
+			if (failed != null) throw failed;
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * Creates the queue of the asynchronous mode, whose writer thread writes
+	 * the entries in batches holding the STORE_LOCK shared.
+	 */
+	private static WriteQueue<Entry<?>> newQueue() {
+		final WriteQueue<Entry<?>> queue = new WriteQueue<Entry<?>>(
+				QUEUE_CAPACITY, "Persist writer") {
+
+			@Override
+			void write(List<Entry<?>> batch) {
+				final Lock shared = STORE_LOCK.readLock();
+				shared.lock();
+				try {
+					for (Entry<?> entry : batch) {
+						final DataFile data = dataFile(entry.file);
+						synchronized (data) {
+							try {
+								entry.persist(data);
+							} catch (IOException e) {
+								e.printStackTrace(); // no caller to tell
+							}
+						}
+					}
+				} finally {
+					shared.unlock();
+				}
+			}
+		};
+		queue.overflow(sOverflow);
+		return queue;
+	}
+
+	/**
+	 * Persists the given datum in the given data file, in the format of the
+	 * file - or skips it in change only mode if it repeats the datum last
+	 * written (see {@link #setChangesOnly(long)}). Must be called holding the
+	 * lock of the data file and the {@code STORE_LOCK} shared.
+	 */
+	private static <D extends Data> void persist(final DataFile data,
+			final DataType<D, ?> type, final D datum,
+			final List<List<byte[]>> listOfListsOfByteArrays)
+			throws IOException {
+		rollIfDue(data); // before the format of the file is looked up
+		final long heartbeat = sHeartbeat;
+		// the file may have been deleted behind our back - see DataFile
+		if (heartbeat > 0 && repeats(datum, data.last) && data.length() > 0) {
+			if (datum.time() - data.written < heartbeat) data.repeated = datum;
+			else persistRepeat(data, datum.time());
+			return;
+		}
+		endRun(data);
+		if (isBinary(data)) persist(data, type, datum);
+		else persist(data, type.fields(), listOfListsOfByteArrays);
+		data.last = (heartbeat > 0) ? datum : null;
+		data.written = datum.time();
+	}
+
+	/**
+	 * Returns true if datum is fairlyEqual to the last one - false if there
+	 * is none or a field fairlyEqual() needs is null in either, see
+	 * {@link Data#isComparable()}.
+	 */
+	private static boolean repeats(final Data datum, final Data last) {
+		return last != null && datum.isComparable() && last.isComparable()
+			&& datum.fairlyEqual(last);
+	}
+
+	/**
+	 * Writes a repeat entry for the last datum skipped in the given data
+	 * file, if any - ending a run of equal data. Must be called holding the
+	 * lock of the data file and the {@code STORE_LOCK} shared.
+	 */
+	private static void endRun(final DataFile data) throws IOException {
+		if (data.repeated != null && data.length() > 0)
+			persistRepeat(data, data.repeated.time());
+		data.repeated = null;
+	}
+
+	/**
+	 * Persists a repeat entry with the given time in the given data file -
+	 * in the binary format an entry with the repeat bit set holding just the
+	 * time, in the text one a line with REPEAT followed by the time. The file
+	 * is not rolled - it must hold the datum repeated. Must be called holding
+	 * the lock of the data file and the {@code STORE_LOCK} shared.
+	 */
+	private static void persistRepeat(final DataFile data, final long time)
+			throws IOException {
+		if (isBinary(data)) {
+			final Encoder out = data.encoder();
+			out.resetRepeat(Encoder.MAX_VARINT_LENGTH);
+			out.writeTime(time);
+			append(data, out, false, true);
+		} else {
+			final String ascii = Long.toString(time);
+			final byte[] entry = data.entryBuffer(ascii.length() + 2);
+			entry[0] = REPEAT;
+			for (int i = 0; i < ascii.length(); ++i) {
+				entry[i + 1] = (byte) ascii.charAt(i);
+			}
+			entry[ascii.length() + 1] = NEWLINE;
+			append(data, entry, 0, ascii.length() + 2);
+		}
+		data.written = time;
+		data.repeated = null;
+	}
+
+	/** A datum queued to be written in asynchronous mode */
+	private static final class Entry<D extends Data> {
+
+		final File file;
+		private final DataType<D, ?> type;
+		private final D datum;
+		private final List<List<byte[]>> listOfListsOfByteArrays;
+
+		Entry(File file, DataType<D, ?> type, D datum,
+				List<List<byte[]>> listOfListsOfByteArrays) {
+			this.file = file;
+			this.type = type;
+			this.datum = datum;
+			this.listOfListsOfByteArrays = listOfListsOfByteArrays;
+		}
+
+		void persist(DataFile data) throws IOException {
+			Persist.persist(data, type, datum, listOfListsOfByteArrays);
+		}
+	}
+
 	/**
 	 * Persists the items (arrays of bytes) contained in {@code listByteArrays}
-	 * in the given {@code file} which may lie in external or internal storage.
-	 * It acquires the {@code FILE_STORE_LOCK} to do so.
+	 * in the given data file. Must be called holding the lock of the data file
+	 * and the {@code STORE_LOCK} shared.
 	 *
-	 * @param file
+	 * @param data
 	 * @param listByteArrays
 	 * @throws IOException
 	 */
-	private static void persist(final File file,
+	private static void persist(final DataFile data,
 			final List<byte[]> listByteArrays) throws IOException {
 		/*
 		 * The bytes contained in each item in the list are persisted in turn
 		 * and are separated by the next chunk of bytes by DELIMITER. The last
 		 * one is followed by NEWLINE (not DELIMITER).
 		 */
-		byte[] result = listOfArraysToByteArray(listByteArrays, DELIMITER,
-			new byte[0]);
-		result[result.length - 1] = NEWLINE;
-		synchronized (FILE_STORE_LOCK) {
-			Writer.append(file, result);
-		}
+		rollIfDue(data);
+		final byte[] entry = data.entryBuffer(length(listByteArrays));
+		final int size = copy(listByteArrays, DELIMITER, entry, 0);
+		entry[size - 1] = NEWLINE;
+		append(data, entry, 0, size);
 	}
 
 	/**
-	 * Persists the given data in the given {@code file} which may lie in
-	 * external or internal storage. It acquires the {@code FILE_STORE_LOCK} to
-	 * do so.
+	 * Persists the given data in the given data file. Must be called holding
+	 * the lock of the data file and the {@code STORE_LOCK} shared.
 	 *
 	 * @param <T>
 	 *            must be an enum that extends Fields
-	 * @param file
+	 * @param data
 	 * @param fields
 	 * @param listsOfByteArrays
 	 * @throws FileNotFoundException
@@ -156,7 +674,7 @@ public final class Persist {
 	 * @throws IOException
 	 */
 	private static <T extends Enum<T> & Fields<?, ?, ?>> void persist(
-			final File file, final Class<T> fields,
+			final DataFile data, final Class<T> fields,
 			final List<List<byte[]>> listsOfByteArrays)
 			throws FileNotFoundException, IOException {
 		/*
@@ -172,24 +690,228 @@ public final class Persist {
 		 * from {@code listsOfByteArrays} or {@code listByteArrays}. The last
 		 * item is followed by NEWLINE (not DELIMITER).
 		 */
-		byte[] result = new byte[0];
-		int nextListOfArrays = 0;
+		rollIfDue(data);
+		int length = 0;
+		for (List<byte[]> arrays : listsOfByteArrays) {
+			length += length(arrays); // non list fields have one array
+		}
+		final byte[] entry = data.entryBuffer(length);
+		int size = 0, nextListOfArrays = 0;
 		for (T field : fields.getEnumConstants()) {
+			final List<byte[]> arrays = listsOfByteArrays
+				.get(nextListOfArrays++);
 			if (field.isList()) {
-				result = listOfArraysToByteArray(
-					listsOfByteArrays.get(nextListOfArrays++), ARRAY_DELIMITER,
-					result);
-				result[result.length - 1] = DELIMITER;
+				size = copy(arrays, ARRAY_DELIMITER, entry, size);
+				if (!arrays.isEmpty()) entry[size - 1] = DELIMITER;
 			} else {
-				result = appendArrayToByteArray(
-					listsOfByteArrays.get(nextListOfArrays++).get(0),
-					DELIMITER, result);
+				size = copy(arrays.get(0), DELIMITER, entry, size);
 			}
 		}
-		result[result.length - 1] = NEWLINE;
-		synchronized (FILE_STORE_LOCK) {
-			Writer.append(file, result);
+		entry[size - 1] = NEWLINE;
+		append(data, entry, 0, size);
+	}
+
+	/**
+	 * Persists the given datum in the given binary data file. If the file is
+	 * empty the header is persisted first, and the entry is a keyframe. Must
+	 * be called holding the lock of the data file and the {@code STORE_LOCK}
+	 * shared.
+	 */
+	private static <D extends Data> void persist(final DataFile data,
+			final DataType<D, ?> type, final D datum) throws IOException {
+		final boolean header = data.length() == 0;
+		final Encoder out = data.encoder();
+		// room for the header and the length
+		out.reset(Encoder.MAX_VARINT_LENGTH
+			+ (header ? Store.HEADER_LENGTH : 0), header);
+		type.write(datum, out);
+		append(data, out, header, false);
+	}
+
+	/**
+	 * Returns true if the given data file is in the binary format. Empty
+	 * files are in the format set by {@link #setBinaryFormat(boolean)},
+	 * existing ones are checked once for the binary header. Binary files of
+	 * an older version are rolled into a segment, so the entries are
+	 * appended to a new file. Must be called holding the lock of the data
+	 * file.
+	 */
+	private static boolean isBinary(DataFile data) throws IOException {
+		if (data.length() == 0) data.binary = sBinary;
+		else if (data.binary == null) {
+			final byte[] header = new byte[Store.HEADER_LENGTH];
+			int read = 0;
+			final FileInputStream fis = new FileInputStream(data.file);
+			try {
+				for (int n; read < header.length && (n = fis.read(header,
+					read, header.length - read)) != -1;) {
+					read += n;
+				}
+			} finally {
+				try {
+					fis.close();
+				} catch (IOException e) {
+					// could not close the file ?
+					e.printStackTrace();
+				}
+			}
+			data.binary = Store.isBinary(header, 0, read);
+			if (data.binary && (read < header.length
+				|| header[Store.MAGIC.length] != Store.VERSION)) {
+				roll(data);
+				data.binary = sBinary;
+			}
 		}
+		return data.binary;
+	}
+
+	/**
+	 * Prepares the given data file for a text entry : a binary file is rolled
+	 * into a segment so text is never appended to binary entries, and the
+	 * file is marked as text even if new files are binary. Must be called
+	 * holding the lock of the data file and the {@code STORE_LOCK} shared.
+	 */
+	private static void textFormat(DataFile data) throws IOException {
+		rollIfDue(data); // so the file is not rolled after it is marked
+		if (isBinary(data)) roll(data);
+		data.binary = false;
+	}
+
+	/**
+	 * Returns the DataFile for the given file, creating it on first access.
+	 * Must be called holding the {@code STORE_LOCK} shared.
+	 */
+	private static DataFile dataFile(File file) {
+		DataFile data = FILES.get(file);
+		if (data == null) {
+			final DataFile created = new DataFile(file);
+			data = FILES.putIfAbsent(file, created);
+			if (data == null) data = created;
+		}
+		return data;
+	}
+
+	/**
+	 * Rolls the given data file into a segment if it is due - see
+	 * {@link DataFile#isDue(long)}. Must be called holding the lock of the
+	 * data file.
+	 */
+	private static void rollIfDue(DataFile data) throws IOException {
+		if (data.isDue(System.currentTimeMillis())) roll(data);
+	}
+
+	/**
+	 * Rolls the given data file into a segment named after the next sequence
+	 * number, unless it is empty - ending the run of equal data in change
+	 * only mode first. Must be called holding the lock of the data file and
+	 * the {@code STORE_LOCK} shared.
+	 */
+	private static void roll(DataFile data) throws IOException {
+		if (data.length() == 0) return;
+		endRun(data);
+		final File dir = data.file.getParentFile();
+		data.roll(new File(dir, Store.segment(data.file.getName(),
+			nextSequence(dir))));
+	}
+
+	/**
+	 * Rolls all the data files in the given directory into segments,
+	 * including those not written to since the process started. Must be
+	 * called holding the {@code STORE_LOCK} exclusively.
+	 */
+	private static void rollAll(File dir) throws IOException {
+		for (File f : FileUtils.listFiles(dir)) {
+			if (Store.sequence(f.getName()) >= 0) continue; // sealed
+			final DataFile data = dataFile(f);
+			synchronized (data) {
+				roll(data);
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued entries, rolls the data files in the given directory
+	 * into segments and adds all the segments to the given list, in the order
+	 * of their sequence numbers - so the data of a type can be parsed from a
+	 * stream of the zip (see {@link Parser#parseArchive(java.io.InputStream)}).
+	 * Returns the biggest sequence number of the segments, -1 if there are
+	 * none. The files are rolled and listed holding the {@code STORE_LOCK}
+	 * exclusively : a writer rolling a file due takes its sequence number
+	 * before renaming it, so with the lock shared a later segment could be
+	 * listed before an earlier one exists - which would then be deleted as
+	 * zipped. Writers only wait for the renames, not for the zip.
+	 */
+	private static long seal(File dir, List<File> segments)
+			throws IOException {
+		final WriteQueue<Entry<?>> queue = sQueue;
+		if (queue != null) queue.drain();
+		flushFiles(); // so files with pending entries only exist to be rolled
+		long last = -1;
+		final Lock exclusive = STORE_LOCK.writeLock();
+		exclusive.lock();
+		try {
+			rollAll(dir);
+			for (File f : FileUtils.listFiles(dir)) {
+				final long sequence = Store.sequence(f.getName());
+				if (sequence < 0) continue;
+				segments.add(f);
+				last = Math.max(last, sequence);
+			}
+		} finally {
+			exclusive.unlock();
+		}
+		Collections.sort(segments, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				return Store.compareWriteOrder(f1.getName(), f2.getName());
+			}
+		});
+		return last;
+	}
+
+	/**
+	 * Returns the next segment sequence number, bigger than the one of any
+	 * segment in the given directory. Sequence numbers are shared by all the
+	 * data files, so the segments of a zip are those up to a number.
+	 */
+	private static long nextSequence(File dir) {
+		synchronized (SEQUENCE_LOCK) {
+			if (sSequence < 0) {
+				final String[] names = dir.list();
+				if (names != null) {
+					for (String name : names) {
+						sSequence = Math.max(sSequence, Store.sequence(name));
+					}
+				}
+			}
+			return ++sSequence;
+		}
+	}
+
+	/**
+	 * Schedules a flush of the given data file in
+	 * {@link DataFile#FLUSH_DELAY_MILLIS} - rescheduled if it fails.
+	 */
+	private static void scheduleFlush(final DataFile data) {
+		FLUSHER.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				final Lock shared = STORE_LOCK.readLock();
+				shared.lock();
+				try {
+					synchronized (data) {
+						data.flush();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					scheduleFlush(data);
+				} finally {
+					shared.unlock();
+				}
+			}
+		}, DataFile.FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
 	}
 
 	// private filesystem methods
@@ -207,7 +929,7 @@ public final class Persist {
 	 * @throws IOException
 	 *             if the directory does not exist and fails to create it
 	 */
-	private static synchronized File getRootFolder(Context ctx)
+	private static File getRootFolder(Context ctx)
 			throws IOException {
 		File result = sRootFolder;
 		if (result == null) {
@@ -263,40 +985,80 @@ public final class Persist {
 
 	// helpers
 	/**
-	 * Turns {@code listByteArrays} (a List<byte[]>) to a byte[] array appended
-	 * to {@code result}. Each item in the list is separated by its next with
-	 * {@code delimiter}. The {@code result} must end in delimiter if not empty
+	 * Returns the number of bytes the arrays in the list take when each one is
+	 * followed by a delimiter.
+	 */
+	private static int length(final List<byte[]> listByteArrays) {
+		int length = 0;
+		for (byte[] array : listByteArrays) {
+			length += array.length + 1;
+		}
+		return length;
+	}
+
+	/**
+	 * Copies the arrays in {@code listByteArrays} to {@code result} starting
+	 * at {@code offset}, each followed by {@code delimiter}.
 	 *
-	 * @param listByteArrays
-	 * @param delimiter
-	 * @param result
-	 * @return
+	 * @return the index after the last delimiter copied
 	 */
-	private static byte[] listOfArraysToByteArray(
-			final List<byte[]> listByteArrays, final byte delimiter,
-			byte[] result) {
+	private static int copy(final List<byte[]> listByteArrays,
+			final byte delimiter, final byte[] result, int offset) {
 		for (byte[] array : listByteArrays) {
-			result = appendArrayToByteArray(array, delimiter, result);
+			offset = copy(array, delimiter, result, offset);
 		}
-		return result;
+		return offset;
 	}
 
 	/**
-	 * Appends {@code array} to {@code result} and adds the {@code delimiter} at
-	 * the last position of the returned array.
+	 * Copies {@code array} to {@code result} at {@code offset} followed by
+	 * {@code delimiter}.
 	 *
-	 * @param array
-	 * @param delimiter
-	 * @param result
-	 * @return
+	 * @return the index after the delimiter
 	 */
-	private static byte[] appendArrayToByteArray(final byte[] array,
-			final byte delimiter, byte[] result) {
-		final byte[] first = result.clone();
-		result = new byte[first.length + array.length + 1];
-		System.arraycopy(first, 0, result, 0, first.length);
-		System.arraycopy(array, 0, result, first.length, array.length);
-		result[result.length - 1] = delimiter;
-		return result;
+	private static int copy(final byte[] array, final byte delimiter,
+			final byte[] result, final int offset) {
+		System.arraycopy(array, 0, result, offset, array.length);
+		result[offset + array.length] = delimiter;
+		return offset + array.length + 1;
+	}
+
+	/**
+	 * Appends the entry encoded in {@code out} to the pending entries of the
+	 * given binary data file, preceded by a varint with the length of the
+	 * entry, the repeat bit and the keyframe bit - and by the header, if
+	 * {@code header} is true. The entry starts after room for those. Must be
+	 * called holding the lock of the data file.
+	 */
+	private static void append(final DataFile data, final Encoder out,
+			final boolean header, final boolean repeat) throws IOException {
+		final int start = Encoder.MAX_VARINT_LENGTH
+			+ (header ? Store.HEADER_LENGTH : 0);
+		final byte[] buffer = out.buffer();
+		final int prefix = (out.size() - start) << 2 | (repeat ? 2 : 0)
+			| (out.keyframe() ? 1 : 0);
+		int offset = start - Encoder.varintLength(prefix);
+		Encoder.writeVarint(prefix, buffer, offset);
+		if (header) {
+			offset -= Store.HEADER_LENGTH;
+			System.arraycopy(Store.header(), 0, buffer, offset,
+				Store.HEADER_LENGTH);
+		}
+		append(data, buffer, offset, out.size() - offset);
+	}
+
+	/**
+	 * Appends {@code length} bytes of {@code array} starting at
+	 * {@code offset} to the pending entries of the given data file. Must be
+	 * called holding the lock of the data file.
+	 */
+	private static void append(final DataFile data, final byte[] array,
+			final int offset, final int length) throws IOException {
+		final boolean wasEmpty = !data.hasPending();
+		try {
+			data.append(array, offset, length);
+		} finally {
+			if (wasEmpty && data.hasPending()) scheduleFlush(data);
+		}
 	}
 }
@@ -11,6 +11,11 @@ public final class Store {
 	static final byte DELIMITER = 0;
 	static final byte ARRAY_DELIMITER = 1;
 	static final byte NEWLINE = '\n';
+	/**
+	 * Starts a text entry holding just the time of a datum that repeats the
+	 * previous entry - see {@link Persist#setChangesOnly(long)}
+	 */
+	static final byte REPEAT = 2;
 	/**
 	 * The parsers need to create strings from the files they parse - this field
 	 * specifies the expected encoding of the files. The only place where I need
@@ -19,4 +24,140 @@ public final class Store {
 	 * getData()
 	 */
 	public static final String FILES_ENCODING = Utils.UTF8;
+	/**
+	 * Separates the name of a data file from the sequence number of its
+	 * sealed segments - see {@link #segment(String, long)}
+	 */
+	static final String SEGMENT_SEPA = ".";
+
+	/**
+	 * Returns the name of the sealed segment of the data file
+	 * {@code filename} with the given sequence number. Data files are rolled
+	 * into segments by {@link Persist} - the segments of a file are read in
+	 * the order of their sequence numbers, followed by the file itself.
+	 */
+	static String segment(String filename, long sequence) {
+		return filename + SEGMENT_SEPA + sequence;
+	}
+
+	/**
+	 * Returns the sequence number of the segment with the given name, or -1
+	 * if the name is not the name of a segment.
+	 */
+	static long sequence(String name) {
+		final int sepa = name.lastIndexOf(SEGMENT_SEPA);
+		if (sepa <= 0 || sepa == name.length() - 1) return -1;
+		long sequence = 0;
+		for (int i = sepa + 1; i < name.length(); ++i) {
+			final int digit = name.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || sequence > (Long.MAX_VALUE - 9) / 10)
+				return -1;
+			sequence = sequence * 10 + digit;
+		}
+		return sequence;
+	}
+
+	/**
+	 * Returns true if {@code name} is the name of a segment of the data file
+	 * {@code filename}.
+	 */
+	static boolean isSegment(String name, String filename) {
+		return name.length() > filename.length() + 1
+			&& name.startsWith(filename + SEGMENT_SEPA) && sequence(name) >= 0
+			&& name.lastIndexOf(SEGMENT_SEPA) == filename.length();
+	}
+
+	/**
+	 * Compares the names of data files in the order their data were written -
+	 * the segments by sequence number, followed by the data files themselves.
+	 */
+	static int compareWriteOrder(String name1, String name2) {
+		long s1 = sequence(name1), s2 = sequence(name2);
+		if (s1 < 0) s1 = Long.MAX_VALUE;
+		if (s2 < 0) s2 = Long.MAX_VALUE;
+		return (s1 < s2) ? -1 : ((s1 == s2) ? 0 : 1);
+	}
+
+	// =========================================================================
+	// Binary format
+	// =========================================================================
+	/*
+	 * A binary data file starts with MAGIC followed by a version byte. Then
+	 * come the entries, each one a varint with the length of the entry
+	 * followed by the bytes of the entry - the values of the fields in the
+	 * order of the Fields enum as written by Fields#write(). List fields start
+	 * with a varint holding the number of their values. Text files start with
+	 * an ASCII digit so can't be confused with binary ones.
+	 *
+	 * Since VERSION_2 the varint before an entry holds the length shifted
+	 * left by one, the low bit set for keyframes. Times are written as the
+	 * difference from the time of the previous entry - keyframes hold the
+	 * time itself, so decoding can start at any keyframe. Every
+	 * KEYFRAME_INTERVAL-th entry is a keyframe, as is the first entry a
+	 * process writes to a file. Ints are zig-zag varints - small values,
+	 * positive or negative, take a byte or two.
+	 *
+	 * Since VERSION_3 the varint holds the length shifted left by two, the
+	 * bit above the keyframe one set for repeat entries : a datum equal to
+	 * the one of the previous entry but for its time, which is all the entry
+	 * holds (see Persist#setChangesOnly). Repeat entries are never keyframes.
+	 *
+	 * Since VERSION_4 the varint before a String holds the number of its
+	 * bytes plus one, 0 for null - before, null was written as the empty
+	 * String.
+	 */
+	/** The first bytes of a binary data file - not valid in a text file */
+	static final byte[] MAGIC = { (byte) 0xC5, 'M', 'D', 'F' };
+	/** Fixed width longs, ints and doubles, varint prefixed strings */
+	static final byte VERSION_1 = 1;
+	/** Keyframe bit in the entry length, delta times and varint ints */
+	static final byte VERSION_2 = 2;
+	/** Repeat bit in the entry length */
+	static final byte VERSION_3 = 3;
+	/** Null Strings written as such */
+	static final byte VERSION_4 = 4;
+	/** The version binary files are written in */
+	static final byte VERSION = VERSION_4;
+	/** Magic plus version */
+	static final int HEADER_LENGTH = MAGIC.length + 1;
+	/** The most entries between two keyframes, as of VERSION_2 */
+	static final int KEYFRAME_INTERVAL = 64;
+
+	/**
+	 * Returns true if the bytes from {@code from} to {@code to} start with
+	 * {@link #MAGIC}. If less than {@code MAGIC.length} bytes are given
+	 * returns true if they are a prefix of MAGIC.
+	 */
+	static boolean isBinary(byte[] array, int from, int to) {
+		for (int i = 0; i < MAGIC.length && from + i < to; ++i) {
+			if (array[from + i] != MAGIC[i]) return false;
+		}
+		return from < to;
+	}
+
+	/**
+	 * Checks the header of a binary file given in {@code array} at
+	 * {@code from} and returns its version.
+	 *
+	 * @throws ParserException
+	 *             if the header is truncated or the version is unsupported
+	 */
+	static byte checkHeader(byte[] array, int from, int to)
+			throws ParserException {
+		if (to - from < HEADER_LENGTH)
+			throw new ParserException("Malformed file : truncated header");
+		final byte version = array[from + MAGIC.length];
+		if (version < VERSION_1 || version > VERSION_4)
+			throw new ParserException("Unsupported format version : "
+				+ version);
+		return version;
+	}
+
+	/** Returns the header of files written in the current binary version */
+	static byte[] header() {
+		final byte[] header = new byte[HEADER_LENGTH];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		header[MAGIC.length] = VERSION;
+		return header;
+	}
 }
@@ -0,0 +1,234 @@
+package gr.uoa.di.monitoring.android.files;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of entries to be written, filled by any number of threads
+ * and drained by a single writer thread which passes them in batches to
+ * {@link #write(List)}. Putting an entry does not lock - unless the queue is
+ * full and the {@link Persist.Overflow} policy is to block. The writer thread
+ * is a daemon started with the queue. If it dies of an Error the entries
+ * queued are dropped, and putting or draining throws instead of waiting for
+ * a writer that is gone.
+ *
+ * @param <E>
+ *            the type of the entries
+ */
+abstract class WriteQueue<E> {
+
+	/** The most entries passed to {@link #write(List)} at once */
+	private static final int MAX_BATCH = 64;
+	private final int capacity;
+	private final ConcurrentLinkedQueue<Node<E>> queue = new ConcurrentLinkedQueue<Node<E>>();
+	/** Entries put and not yet taken by the writer or dropped */
+	private final AtomicInteger size = new AtomicInteger();
+	/** Entries accepted so far */
+	private final AtomicLong put = new AtomicLong();
+	/** Entries written or dropped so far - waited upon on monitor */
+	private final AtomicLong done = new AtomicLong();
+	private final Object monitor = new Object();
+	private final Thread writer;
+	/** The Error the writer thread died of, null while it runs */
+	private volatile Error failure;
+	private volatile Persist.Overflow overflow = Persist.Overflow.BLOCK;
+
+	WriteQueue(int capacity, String name) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive : "
+				+ capacity);
+		this.capacity = capacity;
+		writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drainForever();
+			}
+		}, name);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Writes the given entries, in the order they were put. Called by the
+	 * writer thread only - must not throw.
+	 */
+	abstract void write(List<E> batch);
+
+	void overflow(Persist.Overflow policy) {
+		if (policy == null) throw new NullPointerException("Null policy");
+		overflow = policy;
+	}
+
+	/**
+	 * Puts the given entry in the queue. If the queue is full the overflow
+	 * policy applies - the entry put may make room by dropping the oldest
+	 * entry or the oldest one with the same key.
+	 *
+	 * @param entry
+	 *            the entry to write
+	 * @param key
+	 *            the key (file) of the entry, used to coalesce entries
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for room in the queue - the
+	 *             entry is not put
+	 * @throws IOException
+	 *             if the writer thread died - the entry is not written
+	 */
+	void put(E entry, Object key) throws IOException {
+		checkWriter();
+		for (;;) {
+			final int n = size.get();
+			if (n < capacity) {
+				if (size.compareAndSet(n, n + 1)) break;
+				continue;
+			}
+			// full - the slot of a dropped entry is taken over
+			final Persist.Overflow policy = overflow;
+			if (policy == Persist.Overflow.DROP_OLDEST && drop(null)) break;
+			if (policy == Persist.Overflow.COALESCE && drop(key)) break;
+			awaitRoom();
+		}
+		put.incrementAndGet();
+		queue.offer(new Node<E>(entry, key));
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Waits till all the entries put before this call are written (or
+	 * dropped). Must not be called by the writer thread.
+	 *
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 * @throws IOException
+	 *             if the writer thread died before writing them
+	 */
+	void drain() throws IOException {
+		final long target = put.get();
+		synchronized (monitor) {
+			while (done.get() < target) {
+				checkWriter();
+				try {
+					monitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted draining");
+				}
+			}
+		}
+	}
+
+	// =========================================================================
+	// Private helpers
+	// =========================================================================
+	private static final class Node<E> {
+
+		final E entry;
+		final Object key;
+
+		Node(E entry, Object key) {
+			this.entry = entry;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Removes the oldest entry in the queue with the given key, or the oldest
+	 * entry if key is null. Returns false if there is no such entry (the
+	 * writer may have taken it).
+	 */
+	private boolean drop(Object key) {
+		for (Iterator<Node<E>> it = queue.iterator(); it.hasNext();) {
+			final Node<E> node = it.next();
+			if ((key == null || key.equals(node.key)) && queue.remove(node)) {
+				completed(1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void awaitRoom() throws IOException {
+		synchronized (monitor) {
+			while (size.get() >= capacity) {
+				checkWriter();
+				try {
+					monitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for "
+						+ "room in the queue");
+				}
+			}
+		}
+	}
+
+	/** Throws if the writer thread died - see {@link #drainForever()} */
+	private void checkWriter() throws IOException {
+		final Error e = failure;
+		if (e == null) return;
+		final IOException died = new IOException("Writer thread died : " + e);
+		died.initCause(e);
+		throw died;
+	}
+
+	/** Marks {@code count} entries as written or dropped */
+	private void completed(int count) {
+		done.addAndGet(count);
+		wakeWaiters();
+	}
+
+	private void wakeWaiters() {
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the entries in batches till an Error kills the thread - then the
+	 * entries left in the queue are dropped and the threads waiting for room
+	 * or for the entries to be written are woken to throw.
+	 */
+	private void drainForever() {
+		final List<E> batch = new ArrayList<E>(MAX_BATCH);
+		try {
+			for (;;) {
+				for (Node<E> node; batch.size() < MAX_BATCH
+					&& (node = queue.poll()) != null;) {
+					batch.add(node.entry);
+				}
+				if (batch.isEmpty()) {
+					LockSupport.park(this);
+					continue;
+				}
+				// the entries taken make room at once, not once written - so
+				// dropping the oldest never waits for a write
+				if (size.getAndAdd(-batch.size()) >= capacity) wakeWaiters();
+				try {
+					write(batch);
+				} catch (RuntimeException e) {
+					e.printStackTrace(); // keep the writer alive
+				} finally {
+					completed(batch.size());
+					batch.clear();
+				}
+			}
+		} catch (Error e) {
+			failure = e;
+			int dropped = 0;
+			while (queue.poll() != null) {
+				++dropped;
+			}
+			size.addAndGet(-dropped);
+			completed(dropped);
+			throw e;
+		}
+	}
+}
@@ -4,6 +4,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.BatteryManager;
 
+import gr.uoa.di.monitoring.android.files.DataType;
+import gr.uoa.di.monitoring.android.files.Decoder;
+import gr.uoa.di.monitoring.android.files.Encoder;
 import gr.uoa.di.monitoring.android.files.Parser;
 import gr.uoa.di.monitoring.android.files.ParserException;
 import gr.uoa.di.monitoring.android.files.Persist;
@@ -12,13 +15,14 @@ import gr.uoa.di.monitoring.android.files.Store;
 import org.apache.http.util.EncodingUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.EnumMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import static gr.uoa.di.java.helpers.Utils.arrayToLong;
+import static gr.uoa.di.java.helpers.Utils.arrayToString;
 import static gr.uoa.di.java.helpers.Utils.listToLong;
 import static gr.uoa.di.java.helpers.Utils.listToString;
 
@@ -29,6 +33,7 @@ public final class Battery extends Data {
 
 	private Battery() {}
 
+
 	private enum BatteryFields implements Fields<Intent, Battery, List<Byte>> {
 		TIME {
 
@@ -52,6 +57,27 @@ public final class Battery extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Battery bat) throws ParserException {
+				try {
+					bat.time = arrayToLong(array, offset, length);
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Battery bat, Encoder out) {
+				out.writeTime(bat.time);
+			}
+
+			@Override
+			public void read(Decoder in, final Battery bat)
+					throws ParserException {
+				bat.time = in.readTime();
+			}
 		},
 		STATUS {
 
@@ -75,6 +101,28 @@ public final class Battery extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Battery bat) throws ParserException {
+				try {
+					bat.status = arrayToString(array, offset, length,
+						Store.FILES_ENCODING);
+				} catch (UnsupportedEncodingException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Battery bat, Encoder out) {
+				out.writeString(bat.status);
+			}
+
+			@Override
+			public void read(Decoder in, final Battery bat)
+					throws ParserException {
+				bat.status = in.readString();
+			}
 		};
 
 		@Override
@@ -86,34 +134,39 @@ public final class Battery extends Data {
 	// =========================================================================
 	// Static API
 	// =========================================================================
-	// TODO move this into base class Data and make it generic ***
+	/** The {@link DataType} of {@link Battery}, registered with the Parser */
+	public static final DataType<Battery, ?> TYPE = new DataType<Battery, BatteryFields>(
+		Battery.class, FILE_PREFIX, BatteryFields.class) {
+
+		@Override
+		protected Battery newInstance() {
+			return new Battery();
+		}
+	};
+
 	public static List<Battery> parse(File f) throws IOException,
 			ParserException {
-		final File file = new File(f, FILE_PREFIX);
-		final FileInputStream fis = new FileInputStream(file);
-		List<EnumMap<BatteryFields, List<Byte>>> entries;
-		try {
-			entries = Parser.getEntries(fis, BatteryFields.class);
-		} finally {
-			try {
-				fis.close();
-			} catch (IOException e) {
-				// could not close the file ?
-				e.printStackTrace();
-			}
-		}
-		final List<Battery> data = new ArrayList<Battery>();
-		for (EnumMap<BatteryFields, List<Byte>> enumMap : entries) {
-			Battery bat = new Battery(); // this is what prevents genericity - I
-			// need to reflectively create a new instance - except if it were
-			// created by the Fields somehow and were reset in TIME (***) and
-			// then filled up - awkward
-			for (BatteryFields field : enumMap.keySet()) {
-				field.parse(enumMap.get(field), bat);
-			}
-			data.add(bat);
-		}
-		return data;
+		return TYPE.parse(f);
+	}
+
+	/**
+	 * Parses the file in the given directory splitting it in up to
+	 * {@code parallelism} parts decoded on the executor's threads. See
+	 * {@link DataType#parse(File, ExecutorService, int)}.
+	 */
+	public static List<Battery> parse(File f, ExecutorService executor,
+			int parallelism) throws IOException, ParserException {
+		return TYPE.parse(f, executor, parallelism);
+	}
+
+	/**
+	 * Parses the battery file in the given directory passing the Battery
+	 * instances to the sink one by one - the file is never loaded in memory as
+	 * a whole.
+	 */
+	public static void stream(File f, Parser.Sink<? super Battery> sink)
+			throws IOException, ParserException {
+		TYPE.stream(f, sink);
 	}
 
 	/**
@@ -133,20 +186,21 @@ public final class Battery extends Data {
 	public static Battery saveData(Context ctx, Intent data)
 			throws IOException {
 		final Battery out = new Battery();
-		List<byte[]> listByteArrays = createListOfByteArrays(data, out);
-		Persist.saveData(ctx, FILE_PREFIX, listByteArrays);
+		final List<List<byte[]>> listOfListsOfByteArrays = createListOfListsOfByteArrays(
+			data, out);
+		Persist.saveData(ctx, TYPE, out, listOfListsOfByteArrays);
 		return out;
 	}
 
-	private static List<byte[]> createListOfByteArrays(Intent data,
-			final Battery out) {
+	private static List<List<byte[]>> createListOfListsOfByteArrays(
+			Intent data, final Battery out) {
 		if (out == null)
 			throw new NullPointerException("out parameter can't be null");
-		final List<byte[]> listByteArrays = new ArrayList<byte[]>();
+		final List<List<byte[]>> listOfListsOfByteArrays = new ArrayList<List<byte[]>>();
 		for (BatteryFields bs : BatteryFields.values()) {
-			if (!bs.isList()) listByteArrays.add(bs.getData(data, out).get(0));
+			listOfListsOfByteArrays.add(bs.getData(data, out));
 		}
-		return listByteArrays;
+		return listOfListsOfByteArrays;
 	}
 
 	// =========================================================================
@@ -174,4 +228,9 @@ public final class Battery extends Data {
 		final Battery b = (Battery) d;
 		return b.status.equals(this.status); // NPE here
 	}
+
+	@Override
+	public boolean isComparable() {
+		return status != null;
+	}
 }
@@ -34,6 +34,15 @@ public abstract class Data {
 	abstract public boolean fairlyEqual(final Data d)
 			throws NullPointerException;
 
+	/**
+	 * Returns true if none of the attributes {@link #fairlyEqual(Data)} needs
+	 * is null - so it can be called on this instance, and passed it, without
+	 * throwing. True by default.
+	 */
+	public boolean isComparable() {
+		return true;
+	}
+
 	/**
 	 * Use this to persist the datum in string form. It keeps the time as long
 	 * to easily manipulate it.
@@ -42,6 +51,11 @@ public abstract class Data {
 	 */
 	abstract public String stringForm();
 
+	/** The time of the datum, in milliseconds since the epoch */
+	public final long time() {
+		return time;
+	}
+
 	@Override
 	public String toString() {
 		return "Time" + IS + new Date(time);
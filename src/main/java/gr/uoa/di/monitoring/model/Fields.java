@@ -1,5 +1,7 @@
 package gr.uoa.di.monitoring.model;
 
+import gr.uoa.di.monitoring.android.files.Decoder;
+import gr.uoa.di.monitoring.android.files.Encoder;
 import gr.uoa.di.monitoring.android.files.ParserException;
 
 import java.util.List;
@@ -65,4 +67,62 @@ public interface Fields<T, D extends Data, K> {
 	 *             if objectToModify is null
 	 */
 	void parse(K list, D objectToModify) throws ParserException;
+
+	/**
+	 * Parses a single value of the field out of {@code array} - the value
+	 * occupies {@code length} bytes starting at {@code offset}. For fields that
+	 * are not lists this is called once per data instance with {@code index}
+	 * 0. For list fields it is called once for each element of the list, in
+	 * order, with {@code index} the position of the element in the list. As
+	 * with {@link #parse(Object, Data)} it is called for all the values of the
+	 * Fields enum, in order, initially supplying a new data instance. The bytes
+	 * must not be retained by the implementation - the array is reused by the
+	 * parser.
+	 *
+	 * @param array
+	 *            the buffer the value is contained in
+	 * @param offset
+	 *            the index of the first byte of the value
+	 * @param length
+	 *            the number of bytes of the value, may be 0
+	 * @param index
+	 *            the index of the value in the list for list fields, 0
+	 *            otherwise
+	 * @param objectToModify
+	 *            a Data instance which must not be null, should be final
+	 * @throws ParserException
+	 *             if the bytes can't be parsed
+	 * @throws NullPointerException
+	 *             if objectToModify is null
+	 */
+	void parse(byte[] array, int offset, int length, int index,
+			D objectToModify) throws ParserException;
+
+	/**
+	 * Writes the value of the field of {@code datum} in the binary Store
+	 * format. List fields must first write the number of their values with
+	 * {@link Encoder#writeCount(int)}. This method is called for all the
+	 * values of the Fields enum, in order, for a fully constructed datum.
+	 *
+	 * @param datum
+	 *            the Data instance to write
+	 * @param out
+	 *            the encoder of the entry
+	 */
+	void write(D datum, Encoder out);
+
+	/**
+	 * Reads the value of the field written by {@link #write(Data, Encoder)}
+	 * and sets it on {@code objectToModify}. As with
+	 * {@link #parse(Object, Data)} it is called for all the values of the
+	 * Fields enum, in order, initially supplying a new data instance.
+	 *
+	 * @param in
+	 *            the decoder of the entry
+	 * @param objectToModify
+	 *            a Data instance which must not be null, should be final
+	 * @throws ParserException
+	 *             if the value can't be read
+	 */
+	void read(Decoder in, D objectToModify) throws ParserException;
 }
@@ -3,6 +3,10 @@ package gr.uoa.di.monitoring.model;
 import android.content.Context;
 import android.location.Location;
 
+import gr.uoa.di.java.helpers.StringPool;
+import gr.uoa.di.monitoring.android.files.DataType;
+import gr.uoa.di.monitoring.android.files.Decoder;
+import gr.uoa.di.monitoring.android.files.Encoder;
 import gr.uoa.di.monitoring.android.files.Parser;
 import gr.uoa.di.monitoring.android.files.ParserException;
 import gr.uoa.di.monitoring.android.files.Persist;
@@ -11,13 +15,14 @@ import gr.uoa.di.monitoring.android.files.Store;
 import org.apache.http.util.EncodingUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.EnumMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import static gr.uoa.di.java.helpers.Utils.arrayToDouble;
+import static gr.uoa.di.java.helpers.Utils.arrayToLong;
 import static gr.uoa.di.java.helpers.Utils.listToDouble;
 import static gr.uoa.di.java.helpers.Utils.listToLong;
 import static gr.uoa.di.java.helpers.Utils.listToString;
@@ -28,9 +33,23 @@ public final class Position extends Data {
 	double longitude;
 	String provider;
 	private static final String FILE_PREFIX = "loc";
+	/** The distinct providers seen by the parser - only a handful exist */
+	private static final StringPool PROVIDERS = new StringPool(
+		Store.FILES_ENCODING, 64);
+	/** In meters - see {@link #setTolerance(double)} */
+	private static volatile double sTolerance;
 
 	private Position() {}
 
+	/** Used by {@link PositionColumns#get(int)} */
+	Position(long time, double latitude, double longitude, String provider) {
+		this.time = time;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.provider = provider;
+	}
+
+
 	private enum LocationFields implements
 			Fields<Location, Position, List<Byte>> {
 		TIME {
@@ -53,6 +72,27 @@ public final class Position extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Position pos) throws ParserException {
+				try {
+					pos.time = arrayToLong(array, offset, length);
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Position pos, Encoder out) {
+				out.writeTime(pos.time);
+			}
+
+			@Override
+			public void read(Decoder in, final Position pos)
+					throws ParserException {
+				pos.time = in.readTime();
+			}
 		},
 		LAT {
 
@@ -74,6 +114,27 @@ public final class Position extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Position pos) throws ParserException {
+				try {
+					pos.latitude = arrayToDouble(array, offset, length);
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Position pos, Encoder out) {
+				out.writeDouble(pos.latitude);
+			}
+
+			@Override
+			public void read(Decoder in, final Position pos)
+					throws ParserException {
+				pos.latitude = in.readDouble();
+			}
 		},
 		LONG {
 
@@ -95,6 +156,27 @@ public final class Position extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Position pos) throws ParserException {
+				try {
+					pos.longitude = arrayToDouble(array, offset, length);
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Position pos, Encoder out) {
+				out.writeDouble(pos.longitude);
+			}
+
+			@Override
+			public void read(Decoder in, final Position pos)
+					throws ParserException {
+				pos.longitude = in.readDouble();
+			}
 		},
 		PROVIDER {
 
@@ -118,6 +200,27 @@ public final class Position extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Position pos) throws ParserException {
+				try {
+					pos.provider = PROVIDERS.get(array, offset, length);
+				} catch (UnsupportedEncodingException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Position pos, Encoder out) {
+				out.writeString(pos.provider);
+			}
+
+			@Override
+			public void read(Decoder in, final Position pos)
+					throws ParserException {
+				pos.provider = in.readString(PROVIDERS);
+			}
 		};
 
 		@Override
@@ -129,30 +232,106 @@ public final class Position extends Data {
 	// =========================================================================
 	// Static API
 	// =========================================================================
+	/** The {@link DataType} of {@link Position}, registered with the Parser */
+	public static final DataType<Position, ?> TYPE = new DataType<Position, LocationFields>(
+		Position.class, FILE_PREFIX, LocationFields.class) {
+
+		@Override
+		protected Position newInstance() {
+			return new Position();
+		}
+	};
+
 	public static List<Position> parse(File f) throws IOException,
 			ParserException {
-		final File file = new File(f, FILE_PREFIX);
-		final FileInputStream fis = new FileInputStream(file);
-		List<EnumMap<LocationFields, List<Byte>>> entries;
-		try {
-			entries = Parser.getEntries(fis, LocationFields.class);
-		} finally {
-			try {
-				fis.close();
-			} catch (IOException e) {
-				// could not close the file ?
-				e.printStackTrace();
+		return TYPE.parse(f);
+	}
+
+	/**
+	 * Parses the file in the given directory splitting it in up to
+	 * {@code parallelism} parts decoded on the executor's threads. See
+	 * {@link DataType#parse(File, ExecutorService, int)}.
+	 */
+	public static List<Position> parse(File f, ExecutorService executor,
+			int parallelism) throws IOException, ParserException {
+		return TYPE.parse(f, executor, parallelism);
+	}
+
+	/**
+	 * Parses the position file in the given directory passing the Position
+	 * instances to the sink one by one - the file is never loaded in memory as
+	 * a whole.
+	 */
+	public static void stream(File f, Parser.Sink<? super Position> sink)
+			throws IOException, ParserException {
+		TYPE.stream(f, sink);
+	}
+
+	/**
+	 * Parses the position files in the given directory - the sealed segments
+	 * and the data file, see {@link DataType#files(File)} - into a
+	 * {@link PositionColumns} instance. The fields are parsed into a single
+	 * Position instance which is reused for all the entries and copied into
+	 * the columns - no Position objects are created per entry.
+	 */
+	public static PositionColumns columns(File f) throws IOException,
+			ParserException {
+		final PositionColumns columns = new PositionColumns();
+		TYPE.stream(f, scratchFactory(), new Parser.Sink<Position>() {
+
+			@Override
+			public void accept(Position datum) {
+				columns.add(datum);
 			}
-		}
-		final List<Position> data = new ArrayList<Position>();
-		for (EnumMap<LocationFields, List<Byte>> enumMap : entries) {
-			Position bat = new Position();
-			for (LocationFields field : enumMap.keySet()) {
-				field.parse(enumMap.get(field), bat);
+		});
+		return columns;
+	}
+
+	/**
+	 * Parses the position files in the given directory - the sealed segments
+	 * and the data file, see {@link DataType#files(File)} - adding the
+	 * entries to the given {@link PositionIndex} as coming from the given
+	 * device. As in {@link #columns(File)} a single Position instance is
+	 * reused for all the entries - the index copies the fields. Call it for
+	 * the directory of each device and query the index once done.
+	 */
+	public static void index(File f, String device, PositionIndex index)
+			throws IOException, ParserException {
+		TYPE.stream(f, scratchFactory(), index.sink(device));
+	}
+
+	/**
+	 * Returns a factory returning the same Position instance for all the
+	 * entries - for sinks that copy the values out.
+	 */
+	private static Parser.Factory<Position> scratchFactory() {
+		final Position scratch = new Position();
+		return new Parser.Factory<Position>() {
+
+			@Override
+			public Position newInstance() {
+				return scratch; // all the fields are set for each entry
 			}
-			data.add(bat);
-		}
-		return data;
+		};
+	}
+
+	/**
+	 * Sets how far apart two positions may be and still be
+	 * {@link #fairlyEqual(Data)} - 0 by default, so only positions with the
+	 * same coordinates are. The fixes of a phone that does not move jitter by
+	 * a few meters, so a tolerance of the order of their accuracy lets
+	 * {@link Persist#setChangesOnly(long)} skip them. To find the positions
+	 * near each other in bulk see {@link PositionGrid}.
+	 *
+	 * @param meters
+	 *            the greatest distance of two fairly equal positions
+	 * @throws IllegalArgumentException
+	 *             if meters is negative or NaN
+	 */
+	public static void setTolerance(double meters) {
+		if (!(meters >= 0))
+			throw new IllegalArgumentException("Invalid tolerance : " + meters);
+		sTolerance = meters;
 	}
 
 	/**
@@ -174,20 +353,21 @@ public final class Position extends Data {
 	public static Position saveData(Context ctx, Location data)
 			throws IOException {
 		final Position out = new Position();
-		final List<byte[]> listByteArrays = createListOfByteArrays(data, out);
-		Persist.saveData(ctx, FILE_PREFIX, listByteArrays);
+		final List<List<byte[]>> listOfListsOfByteArrays = createListOfListsOfByteArrays(
+			data, out);
+		Persist.saveData(ctx, TYPE, out, listOfListsOfByteArrays);
 		return out;
 	}
 
-	private static List<byte[]> createListOfByteArrays(Location data,
-			final Position out) {
+	private static List<List<byte[]>> createListOfListsOfByteArrays(
+			Location data, final Position out) {
 		if (out == null)
 			throw new NullPointerException("out parameter can't be null");
-		final List<byte[]> listByteArrays = new ArrayList<byte[]>();
+		final List<List<byte[]>> listOfListsOfByteArrays = new ArrayList<List<byte[]>>();
 		for (LocationFields bs : LocationFields.values()) {
-			listByteArrays.add(bs.getData(data, out).get(0));
+			listOfListsOfByteArrays.add(bs.getData(data, out));
 		}
-		return listByteArrays;
+		return listOfListsOfByteArrays;
 	}
 
 	// =========================================================================
@@ -206,8 +386,9 @@ public final class Position extends Data {
 	}
 
 	/**
-	 * Two Position instances are fairlyEqual if they have the same longitude,
-	 * latitude and provider. FIXME : compare into some meters accuracy
+	 * Two Position instances are fairlyEqual if they have the same provider
+	 * and are at most the tolerance apart - see {@link #setTolerance(double)}.
+	 * Not transitive if the tolerance is not 0.
 	 *
 	 * @throws NullPointerException
 	 *             if d.provider == null
@@ -215,8 +396,45 @@ public final class Position extends Data {
 	@Override
 	public boolean fairlyEqual(Data d) {
 		if (d == null || !(d instanceof Position)) return false;
-		final Position p = (Position) d;
-		return p.latitude == this.latitude && p.longitude == this.longitude
-			&& p.provider.equals(this.provider);
+		return near((Position) d, sTolerance);
+	}
+
+	@Override
+	public boolean isComparable() {
+		return provider != null;
+	}
+
+	/**
+	 * Returns true if p has the same provider as this and is at most
+	 * {@code meters} away.
+	 *
+	 * @throws NullPointerException
+	 *             if p.provider == null
+	 */
+	boolean near(Position p, double meters) {
+		if (!p.provider.equals(this.provider)) return false; // NPE here
+		if (p.latitude == this.latitude && p.longitude == this.longitude)
+			return true;
+		return meters > 0
+			&& distance(latitude, longitude, p.latitude, p.longitude) <= meters;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** Mean radius of the earth in meters */
+	static final double EARTH_RADIUS = 6371008.8;
+
+	/**
+	 * Returns the great circle distance in meters between two points given in
+	 * degrees, using the haversine formula.
+	 */
+	static double distance(double lat1, double lon1, double lat2, double lon2) {
+		final double dLat = Math.toRadians(lat2 - lat1);
+		final double dLon = Math.toRadians(lon2 - lon1);
+		final double sinLat = Math.sin(dLat / 2), sinLon = Math.sin(dLon / 2);
+		final double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1))
+			* Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
 	}
 }
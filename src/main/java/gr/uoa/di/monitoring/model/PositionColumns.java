@@ -0,0 +1,200 @@
+package gr.uoa.di.monitoring.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Column store of parsed {@link Position} data - keeps the times, latitudes
+ * and longitudes in primitive arrays and the providers as byte codes into a
+ * small table of distinct providers. Meant for the server, for files with
+ * millions of positions - bulk operations are tight loops over the arrays and
+ * no Position objects are created except on demand by {@link #get(int)}.
+ * Instances are filled by {@link Position#columns(java.io.File)} and are
+ * effectively immutable once returned.
+ */
+public final class PositionColumns {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	/** The provider codes are bytes */
+	private static final int MAX_PROVIDERS = 256;
+	private long[] time = new long[INITIAL_CAPACITY];
+	private double[] latitude = new double[INITIAL_CAPACITY];
+	private double[] longitude = new double[INITIAL_CAPACITY];
+	private byte[] provider = new byte[INITIAL_CAPACITY];
+	private final List<String> providers = new ArrayList<String>();
+	private int size;
+
+	PositionColumns() {}
+
+	// =========================================================================
+	// API
+	// =========================================================================
+	public int size() {
+		return size;
+	}
+
+	public long time(int i) {
+		checkIndex(i);
+		return time[i];
+	}
+
+	public double latitude(int i) {
+		checkIndex(i);
+		return latitude[i];
+	}
+
+	public double longitude(int i) {
+		checkIndex(i);
+		return longitude[i];
+	}
+
+	public String provider(int i) {
+		checkIndex(i);
+		return providers.get(provider[i] & 0xff);
+	}
+
+	/**
+	 * Creates a Position instance for the i-th row.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if i is not in [0, size())
+	 */
+	public Position get(int i) {
+		checkIndex(i);
+		return new Position(time[i], latitude[i], longitude[i],
+			providers.get(provider[i] & 0xff));
+	}
+
+	/**
+	 * Returns the bounding box of the positions as an array {minLatitude,
+	 * minLongitude, maxLatitude, maxLongitude}, or null if there are no
+	 * positions. Does not account for boxes crossing the antimeridian.
+	 */
+	public double[] boundingBox() {
+		if (size == 0) return null;
+		double minLat = latitude[0], maxLat = minLat;
+		double minLon = longitude[0], maxLon = minLon;
+		for (int i = 1; i < size; ++i) {
+			final double lat = latitude[i], lon = longitude[i];
+			if (lat < minLat) minLat = lat;
+			else if (lat > maxLat) maxLat = lat;
+			if (lon < minLon) minLon = lon;
+			else if (lon > maxLon) maxLon = lon;
+		}
+		return new double[] { minLat, minLon, maxLat, maxLon };
+	}
+
+	/**
+	 * Returns the length in meters of the path through the positions, in the
+	 * order they were parsed - the sum of the great circle distances of
+	 * consecutive positions.
+	 */
+	public double pathLength() {
+		double sum = 0;
+		for (int i = 1; i < size; ++i) {
+			sum += Position.distance(latitude[i - 1], longitude[i - 1],
+				latitude[i], longitude[i]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the number of positions inside the given box (bounds
+	 * inclusive).
+	 */
+	public int countWithin(double minLatitude, double minLongitude,
+			double maxLatitude, double maxLongitude) {
+		int count = 0;
+		for (int i = 0; i < size; ++i) {
+			final double lat = latitude[i], lon = longitude[i];
+			if (lat >= minLatitude && lat <= maxLatitude
+				&& lon >= minLongitude && lon <= maxLongitude) ++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the positions whose time is in [from, to), in the order they
+	 * were parsed.
+	 *
+	 * @param from
+	 *            the start of the time range, inclusive, in millis
+	 * @param to
+	 *            the end of the time range, exclusive, in millis
+	 * @return a new PositionColumns instance
+	 */
+	public PositionColumns between(long from, long to) {
+		final PositionColumns result = new PositionColumns();
+		result.providers.addAll(providers); // the codes stay valid
+		for (int i = 0; i < size; ++i) {
+			final long t = time[i];
+			if (t >= from && t < to)
+				result.add(t, latitude[i], longitude[i], provider[i]);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "PositionColumns" + Data.IS + size + " positions, providers "
+			+ providers;
+	}
+
+	// =========================================================================
+	// Package private - used while parsing
+	// =========================================================================
+	/**
+	 * Appends the values of the given position - the instance itself is not
+	 * retained, so the parser may reuse it.
+	 *
+	 * @throws IllegalStateException
+	 *             if there are more than 256 distinct providers
+	 */
+	void add(Position p) {
+		add(p.time, p.latitude, p.longitude, code(p.provider));
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private void add(long t, double lat, double lon, byte prov) {
+		if (size == time.length) grow();
+		time[size] = t;
+		latitude[size] = lat;
+		longitude[size] = lon;
+		provider[size] = prov;
+		++size;
+	}
+
+	private byte code(String prov) {
+		final int index = providers.indexOf(prov); // a handful of them
+		if (index != -1) return (byte) index;
+		if (providers.size() == MAX_PROVIDERS)
+			throw new IllegalStateException("More than " + MAX_PROVIDERS
+				+ " providers");
+		providers.add(prov);
+		return (byte) (providers.size() - 1);
+	}
+
+	private void grow() {
+		final int capacity = time.length * 2;
+		final long[] t = new long[capacity];
+		System.arraycopy(time, 0, t, 0, size);
+		time = t;
+		final double[] lat = new double[capacity];
+		System.arraycopy(latitude, 0, lat, 0, size);
+		latitude = lat;
+		final double[] lon = new double[capacity];
+		System.arraycopy(longitude, 0, lon, 0, size);
+		longitude = lon;
+		final byte[] prov = new byte[capacity];
+		System.arraycopy(provider, 0, prov, 0, size);
+		provider = prov;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: "
+				+ size);
+	}
+}
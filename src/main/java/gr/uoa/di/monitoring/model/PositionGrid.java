@@ -0,0 +1,216 @@
+package gr.uoa.di.monitoring.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Set of positions none of which is within a distance of another - finds the
+ * near duplicates of a position in constant time instead of comparing it to
+ * all the positions. The positions are hashed to the cells of a grid at least
+ * as wide as the distance, so the positions near a point are in its cell or
+ * in the cells around it. The cells span a band of latitude each and are
+ * wider in degrees of longitude towards the poles, so they are never narrower
+ * than the distance - and wrap around the antimeridian. Meant for cleaning
+ * up the parsed positions in the server, see {@link #distinct(List, double)}.
+ * Not thread safe.
+ */
+public final class PositionGrid {
+
+	/** Meters per degree of latitude */
+	private static final double METERS_PER_DEGREE = Position.EARTH_RADIUS
+		* Math.PI / 180;
+	/** About 2cm - so the cells of a row can be counted in an int */
+	private static final double MIN_CELL = 360.0 / (1 << 30);
+	private static final int INITIAL_CAPACITY = 1024;
+	/** Empty slots of the table of cells */
+	private static final int NONE = -1;
+	private final double meters;
+	/** The height of the cells in degrees of latitude */
+	private final double cell;
+	/** The positions added, in order */
+	private final List<Position> positions = new ArrayList<Position>();
+	/** The index of the position added before the i-th in its cell, or NONE */
+	private int[] next = new int[INITIAL_CAPACITY];
+	/** Open addressing table of the cells - see {@link #key(int, int)} */
+	private long[] keys = new long[INITIAL_CAPACITY];
+	/** The index of the last position added to the cell, or NONE if empty */
+	private int[] heads = new int[INITIAL_CAPACITY];
+	private int cells;
+
+	/**
+	 * @param meters
+	 *            the distance within which positions are duplicates - 0 for
+	 *            positions with the same coordinates only
+	 * @throws IllegalArgumentException
+	 *             if meters is negative or NaN
+	 */
+	public PositionGrid(double meters) {
+		if (!(meters >= 0))
+			throw new IllegalArgumentException("Invalid distance : " + meters);
+		this.meters = meters;
+		cell = Math.max(meters / METERS_PER_DEGREE, MIN_CELL);
+		Arrays.fill(heads, NONE);
+	}
+
+	// =========================================================================
+	// Static API
+	// =========================================================================
+	/**
+	 * Returns the given positions without their near duplicates - a position
+	 * is dropped if it has the same provider as a position kept before it and
+	 * is at most {@code meters} away from it. Takes time linear in the number
+	 * of positions, unless most of them are crowded in a few cells.
+	 *
+	 * @param positions
+	 *            the positions, typically as parsed
+	 * @param meters
+	 *            the distance within which positions are duplicates
+	 * @return a new list with the positions kept, in their order
+	 * @throws NullPointerException
+	 *             if the provider of a position is null
+	 */
+	public static List<Position> distinct(List<Position> positions,
+			double meters) {
+		final PositionGrid grid = new PositionGrid(meters);
+		for (Position p : positions) {
+			grid.add(p);
+		}
+		return new ArrayList<Position>(grid.positions);
+	}
+
+	// =========================================================================
+	// API
+	// =========================================================================
+	/**
+	 * Adds the given position unless a near duplicate of it was added - see
+	 * {@link #find(Position)}.
+	 *
+	 * @return true if the position was added
+	 * @throws NullPointerException
+	 *             if the provider of a position is null
+	 */
+	public boolean add(Position p) {
+		if (find(p) != null) return false;
+		final int index = positions.size();
+		if (index == next.length) {
+			final int[] bigger = new int[index * 2];
+			System.arraycopy(next, 0, bigger, 0, index);
+			next = bigger;
+		}
+		final int row = row(p.latitude);
+		final long key = key(row, column(columns(row), p.longitude));
+		int slot = slot(key);
+		if (heads[slot] == NONE) { // a new cell
+			if (++cells * 2 > keys.length) {
+				grow();
+				slot = slot(key);
+			}
+			keys[slot] = key;
+		}
+		next[index] = heads[slot];
+		heads[slot] = index;
+		positions.add(p);
+		return true;
+	}
+
+	/**
+	 * Returns a position added with the same provider as p and at most the
+	 * distance of the grid away from it, or null if there is none.
+	 *
+	 * @throws NullPointerException
+	 *             if the provider of a position is null
+	 */
+	public Position find(Position p) {
+		final int row = row(p.latitude);
+		for (int r = row - 1; r <= row + 1; ++r) {
+			final int columns = columns(r);
+			final int column = column(columns, p.longitude);
+			// each distinct column once - a row may have fewer than 3
+			final int last = column + Math.min(1, columns - 2);
+			for (int c = column - 1; c <= last; ++c) {
+				final int slot = slot(key(r, (c + columns) % columns));
+				for (int i = heads[slot]; i != NONE; i = next[i]) {
+					final Position q = positions.get(i);
+					if (q.near(p, meters)) return q;
+				}
+			}
+		}
+		return null;
+	}
+
+	/** The number of positions added */
+	public int size() {
+		return positions.size();
+	}
+
+	/** The positions added, in the order they were added - read only */
+	public List<Position> positions() {
+		return Collections.unmodifiableList(positions);
+	}
+
+	@Override
+	public String toString() {
+		return "PositionGrid" + Data.IS + positions.size() + " positions in "
+			+ cells + " cells of " + meters + "m";
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private int row(double latitude) {
+		return (int) Math.floor((latitude + 90) / cell);
+	}
+
+	private static int column(int columns, double longitude) {
+		final int column = (int) Math.floor((longitude + 180) / 360 * columns);
+		return ((column % columns) + columns) % columns; // 180 is -180
+	}
+
+	/**
+	 * The number of cells of the given row - as many as fit in a circle of
+	 * latitude, their width being the longitude difference of two points at
+	 * the cell distance in the row or in the ones around it. See
+	 * {@link Position#distance}.
+	 */
+	private int columns(int row) {
+		final double south = row * cell - 90 - cell, north = south + 3 * cell;
+		final double pole = Math.min(90, Math.max(Math.abs(south), Math
+			.abs(north)));
+		final double sin = Math.sin(Math.toRadians(cell) / 2)
+			/ Math.cos(Math.toRadians(pole));
+		if (!(sin < 1)) return 1; // near the poles
+		final double width = Math.toDegrees(2 * Math.asin(sin));
+		return (int) Math.max(1, Math.min(1 << 30, Math.floor(360 / width)));
+	}
+
+	private static long key(int row, int column) {
+		return ((long) row << 32) | (column & 0xffffffffL);
+	}
+
+	/** The slot of the cell with the given key, or of the empty one to add it */
+	private int slot(long key) {
+		final int mask = keys.length - 1;
+		int slot = (int) ((key ^ (key >>> 29)) * 0x9e3779b97f4a7c15L >>> 32)
+			& mask;
+		while (heads[slot] != NONE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final int[] oldHeads = heads;
+		keys = new long[oldKeys.length * 2];
+		heads = new int[oldHeads.length * 2];
+		Arrays.fill(heads, NONE);
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldHeads[i] == NONE) continue;
+			final int slot = slot(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			heads[slot] = oldHeads[i];
+		}
+	}
+}
@@ -0,0 +1,704 @@
+package gr.uoa.di.monitoring.model;
+
+import gr.uoa.di.monitoring.android.files.Parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial index of parsed {@link Position} data, possibly of many devices -
+ * answers bounding box, radius and k nearest queries, optionally restricted to
+ * a time range, visiting only the part of the data near the answer. The
+ * positions are appended to primitive arrays as they are parsed (see
+ * {@link #sink(String)}) and packed into an R-tree by Sort-Tile-Recursive
+ * before the first query : each node bounds up to {@link #NODE_SIZE}
+ * children and the times of the positions under it. Queries return the
+ * indices of the positions, which are read with the accessors - as in
+ * {@link PositionColumns}. The index can be written next to the data and read
+ * back without being packed again (see {@link #write(OutputStream)}). Not
+ * thread safe - call {@link #pack()} before sharing it between threads that
+ * only query it.
+ */
+public final class PositionIndex {
+
+	/** The most children of a node - and positions of a leaf */
+	public static final int NODE_SIZE = 16;
+	private static final int INITIAL_CAPACITY = 1024;
+	/** The first bytes of a written index */
+	private static final int MAGIC = 0x50494458;
+	private static final byte VERSION = 1;
+	/** Quantized coordinates take 31 bits - see {@link #str} */
+	private static final double QUANTUM = (1L << 31) - 1;
+	// the positions - in the order they were added till packed
+	private long[] time = new long[INITIAL_CAPACITY];
+	private double[] latitude = new double[INITIAL_CAPACITY];
+	private double[] longitude = new double[INITIAL_CAPACITY];
+	private int[] provider = new int[INITIAL_CAPACITY];
+	private int[] device = new int[INITIAL_CAPACITY];
+	private int size;
+	private final Table providers = new Table();
+	private final Table devices = new Table();
+	// the nodes - the leaves first and the root last, null till packed
+	private double[] minLatitude, minLongitude, maxLatitude, maxLongitude;
+	private long[] minTime, maxTime;
+	/** The children of a node are from first (inclusive) to end (exclusive) */
+	private int[] first, end;
+	private int leaves;
+	private int nodes;
+	/** Whether positions were added since the index was packed */
+	private boolean dirty;
+
+	public PositionIndex() {}
+
+	// =========================================================================
+	// API - filling the index
+	// =========================================================================
+	/**
+	 * Adds the values of the given position - the instance itself is not
+	 * retained. The index is packed anew before the next query, and the
+	 * indices returned by the queries before are no longer valid.
+	 *
+	 * @param p
+	 *            the position
+	 * @param deviceId
+	 *            the device the position comes from, may be null
+	 */
+	public void add(Position p, String deviceId) {
+		if (size == time.length) grow();
+		time[size] = p.time;
+		latitude[size] = p.latitude;
+		longitude[size] = p.longitude;
+		provider[size] = providers.code(p.provider);
+		device[size] = devices.code(deviceId);
+		++size;
+		dirty = true;
+	}
+
+	/**
+	 * Returns a sink adding the positions it receives from the given device -
+	 * to be passed to the parser, see {@link Position#index(java.io.File,
+	 * String, PositionIndex)}.
+	 */
+	public Parser.Sink<Position> sink(final String deviceId) {
+		return new Parser.Sink<Position>() {
+
+			@Override
+			public void accept(Position datum) {
+				add(datum, deviceId);
+			}
+		};
+	}
+
+	/**
+	 * Packs the positions added into the R-tree, unless done already. Called
+	 * by the queries - the positions are reordered, so the indices returned
+	 * before are no longer valid.
+	 */
+	public void pack() {
+		if (!dirty && minTime != null) return;
+		final int[] order = str(latitude, longitude, size);
+		time = permute(time, order);
+		latitude = permute(latitude, order);
+		longitude = permute(longitude, order);
+		provider = permute(provider, order);
+		device = permute(device, order);
+		leaves = leafCount(size);
+		final int capacity = nodeCount(leaves);
+		minLatitude = new double[capacity];
+		minLongitude = new double[capacity];
+		maxLatitude = new double[capacity];
+		maxLongitude = new double[capacity];
+		minTime = new long[capacity];
+		maxTime = new long[capacity];
+		first = new int[capacity];
+		end = new int[capacity];
+		nodes = 0;
+		for (int i = 0; i < size; i += NODE_SIZE) {
+			addLeaf(i, Math.min(size, i + NODE_SIZE));
+		}
+		if (size == 0) addLeaf(0, 0);
+		// each level is sorted like the positions and grouped into the next
+		for (int level = 0, count = leaves; count > 1;) {
+			final double[] lat = new double[count], lon = new double[count];
+			for (int i = 0; i < count; ++i) {
+				lat[i] = (minLatitude[level + i] + maxLatitude[level + i]) / 2;
+				lon[i] = (minLongitude[level + i] + maxLongitude[level + i]) / 2;
+			}
+			reorder(level, str(lat, lon, count));
+			final int next = level + count;
+			for (int i = level; i < next; i += NODE_SIZE) {
+				addNode(i, Math.min(next, i + NODE_SIZE));
+			}
+			count = nodes - next;
+			level = next;
+		}
+		dirty = false;
+	}
+
+	// =========================================================================
+	// API - queries
+	// =========================================================================
+	/**
+	 * Returns the indices of the positions inside the given box (bounds
+	 * inclusive). Does not account for boxes crossing the antimeridian.
+	 */
+	public int[] within(double minLat, double minLon, double maxLat,
+			double maxLon) {
+		return within(minLat, minLon, maxLat, maxLon, Long.MIN_VALUE,
+			Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the indices of the positions inside the given box (bounds
+	 * inclusive) whose time is in [from, to). Does not account for boxes
+	 * crossing the antimeridian.
+	 */
+	public int[] within(double minLat, double minLon, double maxLat,
+			double maxLon, long from, long to) {
+		pack();
+		final Ints result = new Ints();
+		final Ints stack = new Ints();
+		stack.add(nodes - 1);
+		while (stack.size > 0) {
+			final int node = stack.array[--stack.size];
+			if (!during(node, from, to) || minLatitude[node] > maxLat
+				|| maxLatitude[node] < minLat || minLongitude[node] > maxLon
+				|| maxLongitude[node] < minLon) continue;
+			for (int i = first[node]; i < end[node]; ++i) {
+				if (node >= leaves) stack.add(i);
+				else if (time[i] >= from && time[i] < to
+					&& latitude[i] >= minLat && latitude[i] <= maxLat
+					&& longitude[i] >= minLon && longitude[i] <= maxLon)
+					result.add(i);
+			}
+		}
+		return result.toArray();
+	}
+
+	/**
+	 * Returns the indices of the positions at most {@code meters} away from
+	 * the given point - the great circle distance, as in
+	 * {@link Position#fairlyEqual(Data)}.
+	 */
+	public int[] near(double lat, double lon, double meters) {
+		return near(lat, lon, meters, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the indices of the positions at most {@code meters} away from
+	 * the given point whose time is in [from, to).
+	 */
+	public int[] near(double lat, double lon, double meters, long from,
+			long to) {
+		pack();
+		final Ints result = new Ints();
+		final Ints stack = new Ints();
+		stack.add(nodes - 1);
+		while (stack.size > 0) {
+			final int node = stack.array[--stack.size];
+			if (!during(node, from, to)
+				|| minDistance(node, lat, lon) > meters) continue;
+			for (int i = first[node]; i < end[node]; ++i) {
+				if (node >= leaves) stack.add(i);
+				else if (time[i] >= from && time[i] < to
+					&& Position.distance(lat, lon, latitude[i], longitude[i]) <= meters)
+					result.add(i);
+			}
+		}
+		return result.toArray();
+	}
+
+	/**
+	 * Returns the indices of the k positions nearest to the given point,
+	 * nearest first - fewer if there are not as many.
+	 */
+	public int[] nearest(double lat, double lon, int k) {
+		return nearest(lat, lon, k, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the indices of the k positions nearest to the given point
+	 * whose time is in [from, to), nearest first - fewer if there are not as
+	 * many. The nodes are visited in the order of their distance, so only
+	 * the ones nearer than the k-th position are.
+	 */
+	public int[] nearest(double lat, double lon, int k, long from, long to) {
+		pack();
+		final Ints result = new Ints();
+		final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(
+			64, new Comparator<Candidate>() {
+
+				@Override
+				public int compare(Candidate c1, Candidate c2) {
+					return Double.compare(c1.distance, c2.distance);
+				}
+			});
+		queue.add(new Candidate(nodes - 1, false, 0));
+		while (result.size < k && !queue.isEmpty()) {
+			final Candidate c = queue.poll();
+			if (c.position) {
+				result.add(c.index);
+				continue;
+			}
+			for (int i = first[c.index]; i < end[c.index]; ++i) {
+				if (c.index < leaves) {
+					if (time[i] >= from && time[i] < to)
+						queue.add(new Candidate(i, true, Position.distance(
+							lat, lon, latitude[i], longitude[i])));
+				} else if (during(i, from, to))
+					queue.add(new Candidate(i, false, minDistance(i, lat, lon)));
+			}
+		}
+		return result.toArray();
+	}
+
+	// =========================================================================
+	// API - accessors
+	// =========================================================================
+	public int size() {
+		return size;
+	}
+
+	public long time(int i) {
+		checkIndex(i);
+		return time[i];
+	}
+
+	public double latitude(int i) {
+		checkIndex(i);
+		return latitude[i];
+	}
+
+	public double longitude(int i) {
+		checkIndex(i);
+		return longitude[i];
+	}
+
+	public String provider(int i) {
+		checkIndex(i);
+		return providers.values.get(provider[i]);
+	}
+
+	/** The device the i-th position comes from, null if not given */
+	public String device(int i) {
+		checkIndex(i);
+		return devices.values.get(device[i]);
+	}
+
+	/**
+	 * Creates a Position instance for the i-th position.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if i is not in [0, size())
+	 */
+	public Position get(int i) {
+		checkIndex(i);
+		return new Position(time[i], latitude[i], longitude[i],
+			providers.values.get(provider[i]));
+	}
+
+	// =========================================================================
+	// API - persistence
+	// =========================================================================
+	/**
+	 * Writes the packed index to the given stream, which is flushed but not
+	 * closed - meant to be stored next to the data it indexes.
+	 * {@link #read(InputStream)} reads it back without sorting anything.
+	 *
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void write(OutputStream os) throws IOException {
+		pack();
+		final DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(os, 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		providers.write(out);
+		devices.write(out);
+		out.writeInt(size);
+		for (int i = 0; i < size; ++i) {
+			out.writeLong(time[i]);
+			out.writeDouble(latitude[i]);
+			out.writeDouble(longitude[i]);
+			out.writeInt(provider[i]);
+			out.writeInt(device[i]);
+		}
+		out.writeInt(leaves);
+		out.writeInt(nodes);
+		for (int i = 0; i < nodes; ++i) {
+			out.writeDouble(minLatitude[i]);
+			out.writeDouble(minLongitude[i]);
+			out.writeDouble(maxLatitude[i]);
+			out.writeDouble(maxLongitude[i]);
+			out.writeLong(minTime[i]);
+			out.writeLong(maxTime[i]);
+			out.writeInt(first[i]);
+			out.writeInt(end[i]);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads an index written by {@link #write(OutputStream)}. The stream is
+	 * not closed.
+	 *
+	 * @throws IOException
+	 *             if reading fails or the stream does not hold an index
+	 */
+	public static PositionIndex read(InputStream is) throws IOException {
+		final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(is, 1 << 16));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a position index");
+		final byte version = in.readByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported index version : " + version);
+		final PositionIndex index = new PositionIndex();
+		index.providers.read(in);
+		index.devices.read(in);
+		final int size = in.readInt();
+		if (size < 0) throw new IOException("Malformed index : size " + size);
+		// the arrays grow as the positions are read, not sized after the
+		// size read - so a corrupt one ends in an EOFException instead of
+		// an OutOfMemoryError
+		for (int i = 0; i < size; ++i) {
+			if (i == index.time.length) index.grow();
+			index.time[i] = in.readLong();
+			index.latitude[i] = in.readDouble();
+			index.longitude[i] = in.readDouble();
+			index.provider[i] = index.providers.check(in.readInt());
+			index.device[i] = index.devices.check(in.readInt());
+			index.size = i + 1;
+		}
+		// the shape of the tree follows from the size, which was read
+		index.leaves = in.readInt();
+		final int nodes = in.readInt();
+		if (index.leaves != leafCount(size) || nodes != nodeCount(index.leaves))
+			throw new IOException("Malformed index : " + index.leaves
+				+ " leaves, " + nodes + " nodes for " + size + " positions");
+		index.minLatitude = new double[nodes];
+		index.minLongitude = new double[nodes];
+		index.maxLatitude = new double[nodes];
+		index.maxLongitude = new double[nodes];
+		index.minTime = new long[nodes];
+		index.maxTime = new long[nodes];
+		index.first = new int[nodes];
+		index.end = new int[nodes];
+		for (int i = 0; i < nodes; ++i) {
+			index.minLatitude[i] = in.readDouble();
+			index.minLongitude[i] = in.readDouble();
+			index.maxLatitude[i] = in.readDouble();
+			index.maxLongitude[i] = in.readDouble();
+			index.minTime[i] = in.readLong();
+			index.maxTime[i] = in.readLong();
+			index.first[i] = in.readInt();
+			index.end[i] = in.readInt();
+			final int limit = (i < index.leaves) ? size : i;
+			if (index.first[i] < 0 || index.first[i] > index.end[i]
+				|| index.end[i] > limit)
+				throw new IOException("Malformed index : node " + i);
+		}
+		index.nodes = nodes;
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return "PositionIndex" + Data.IS + size + " positions, " + nodes
+			+ " nodes, providers " + providers.values + ", "
+			+ devices.values.size() + " devices";
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** Strings coded as their index in the table - providers and devices */
+	private static final class Table {
+
+		final List<String> values = new ArrayList<String>();
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+		int code(String value) {
+			final Integer code = codes.get(value);
+			if (code != null) return code;
+			values.add(value);
+			codes.put(value, values.size() - 1);
+			return values.size() - 1;
+		}
+
+		int check(int code) throws IOException {
+			if (code < 0 || code >= values.size())
+				throw new IOException("Malformed index : code " + code);
+			return code;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(values.size());
+			for (String value : values) {
+				out.writeBoolean(value != null);
+				if (value != null) out.writeUTF(value);
+			}
+		}
+
+		void read(DataInputStream in) throws IOException {
+			for (int i = in.readInt(); i > 0; --i) {
+				code(in.readBoolean() ? in.readUTF() : null);
+			}
+		}
+	}
+
+	/** A node or a position in the queue of {@link #nearest} */
+	private static final class Candidate {
+
+		final int index;
+		final boolean position;
+		final double distance;
+
+		Candidate(int index, boolean position, double distance) {
+			this.index = index;
+			this.position = position;
+			this.distance = distance;
+		}
+	}
+
+	/** A growable int[] */
+	private static final class Ints {
+
+		int[] array = new int[64];
+		int size;
+
+		void add(int value) {
+			if (size == array.length) {
+				final int[] bigger = new int[size * 2];
+				System.arraycopy(array, 0, bigger, 0, size);
+				array = bigger;
+			}
+			array[size++] = value;
+		}
+
+		int[] toArray() {
+			final int[] result = new int[size];
+			System.arraycopy(array, 0, result, 0, size);
+			return result;
+		}
+	}
+
+	/**
+	 * Returns the order of the first {@code count} points in
+	 * Sort-Tile-Recursive : sorted by longitude in
+	 * vertical slices of about sqrt(count / NODE_SIZE) nodes, each one sorted
+	 * by latitude - so consecutive runs of NODE_SIZE points are compact. The
+	 * coordinates are sorted quantized to 31 bits, packed with the index in a
+	 * long so a primitive sort does.
+	 */
+	private static int[] str(double[] lat, double[] lon, int count) {
+		final long[] keys = new long[count];
+		for (int i = 0; i < keys.length; ++i) {
+			keys[i] = quantize(lon[i], 180) << 32 | i;
+		}
+		Arrays.sort(keys);
+		final int pages = (keys.length + NODE_SIZE - 1) / NODE_SIZE;
+		final int slice = NODE_SIZE * (int) Math.ceil(Math.sqrt(pages));
+		for (int s = 0; s < keys.length; s += slice) {
+			final int e = Math.min(keys.length, s + slice);
+			for (int i = s; i < e; ++i) {
+				final int index = (int) keys[i];
+				keys[i] = quantize(lat[index], 90) << 32 | index;
+			}
+			Arrays.sort(keys, s, e);
+		}
+		final int[] order = new int[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/** Maps [-range, range] to [0, 2^31) - NaN and outliers to the ends */
+	private static long quantize(double degrees, double range) {
+		final double q = (degrees + range) / (2 * range) * QUANTUM;
+		return (long) Math.max(0, Math.min(QUANTUM, q)); // NaN is 0
+	}
+
+	private static long[] permute(long[] array, int[] order) {
+		final long[] result = new long[Math.max(order.length, 1)];
+		for (int i = 0; i < order.length; ++i) {
+			result[i] = array[order[i]];
+		}
+		return result;
+	}
+
+	private static double[] permute(double[] array, int[] order) {
+		final double[] result = new double[Math.max(order.length, 1)];
+		for (int i = 0; i < order.length; ++i) {
+			result[i] = array[order[i]];
+		}
+		return result;
+	}
+
+	private static int[] permute(int[] array, int[] order) {
+		final int[] result = new int[Math.max(order.length, 1)];
+		for (int i = 0; i < order.length; ++i) {
+			result[i] = array[order[i]];
+		}
+		return result;
+	}
+
+	/** Reorders the nodes from {@code level} on in the given order */
+	private void reorder(int level, int[] order) {
+		final int count = order.length;
+		final double[] d = new double[count];
+		final long[] l = new long[count];
+		final int[] n = new int[count];
+		for (double[] array : new double[][] { minLatitude, minLongitude,
+				maxLatitude, maxLongitude }) {
+			for (int i = 0; i < count; ++i) {
+				d[i] = array[level + order[i]];
+			}
+			System.arraycopy(d, 0, array, level, count);
+		}
+		for (long[] array : new long[][] { minTime, maxTime }) {
+			for (int i = 0; i < count; ++i) {
+				l[i] = array[level + order[i]];
+			}
+			System.arraycopy(l, 0, array, level, count);
+		}
+		for (int[] array : new int[][] { first, end }) {
+			for (int i = 0; i < count; ++i) {
+				n[i] = array[level + order[i]];
+			}
+			System.arraycopy(n, 0, array, level, count);
+		}
+	}
+
+	/** Adds a leaf bounding the positions from {@code from} to {@code to} */
+	private void addLeaf(int from, int to) {
+		final int node = nodes++;
+		first[node] = from;
+		end[node] = to;
+		minLatitude[node] = minLongitude[node] = Double.POSITIVE_INFINITY;
+		maxLatitude[node] = maxLongitude[node] = Double.NEGATIVE_INFINITY;
+		minTime[node] = Long.MAX_VALUE;
+		maxTime[node] = Long.MIN_VALUE;
+		for (int i = from; i < to; ++i) {
+			minLatitude[node] = Math.min(minLatitude[node], latitude[i]);
+			minLongitude[node] = Math.min(minLongitude[node], longitude[i]);
+			maxLatitude[node] = Math.max(maxLatitude[node], latitude[i]);
+			maxLongitude[node] = Math.max(maxLongitude[node], longitude[i]);
+			minTime[node] = Math.min(minTime[node], time[i]);
+			maxTime[node] = Math.max(maxTime[node], time[i]);
+		}
+	}
+
+	/** Adds a node bounding the nodes from {@code from} to {@code to} */
+	private void addNode(int from, int to) {
+		final int node = nodes++;
+		first[node] = from;
+		end[node] = to;
+		minLatitude[node] = minLongitude[node] = Double.POSITIVE_INFINITY;
+		maxLatitude[node] = maxLongitude[node] = Double.NEGATIVE_INFINITY;
+		minTime[node] = Long.MAX_VALUE;
+		maxTime[node] = Long.MIN_VALUE;
+		for (int i = from; i < to; ++i) {
+			minLatitude[node] = Math.min(minLatitude[node], minLatitude[i]);
+			minLongitude[node] = Math.min(minLongitude[node], minLongitude[i]);
+			maxLatitude[node] = Math.max(maxLatitude[node], maxLatitude[i]);
+			maxLongitude[node] = Math.max(maxLongitude[node], maxLongitude[i]);
+			minTime[node] = Math.min(minTime[node], minTime[i]);
+			maxTime[node] = Math.max(maxTime[node], maxTime[i]);
+		}
+	}
+
+	/** Whether the node holds positions whose time may be in [from, to) */
+	private boolean during(int node, long from, long to) {
+		return minTime[node] < to && maxTime[node] >= from;
+	}
+
+	/**
+	 * Returns the great circle distance in meters from the given point to the
+	 * nearest point of the box of the node - 0 if the point is in the box.
+	 * If the point is between the meridians of the box the nearest point is
+	 * on its meridian, else on one of the meridians of the box : at the
+	 * latitude nearest to the one where the great circle of the meridian is
+	 * nearest to the point, or at a corner if that is more than 90 degrees of
+	 * longitude away.
+	 */
+	private double minDistance(int node, double lat, double lon) {
+		if (minLatitude[node] > maxLatitude[node])
+			return Double.POSITIVE_INFINITY; // empty
+		if (lon >= minLongitude[node] && lon <= maxLongitude[node])
+			return Position.distance(lat, lon, clamp(lat, node), lon);
+		return Math.min(meridianDistance(node, lat, lon, minLongitude[node]),
+			meridianDistance(node, lat, lon, maxLongitude[node]));
+	}
+
+	private double meridianDistance(int node, double lat, double lon,
+			double meridian) {
+		final double cos = Math.cos(Math.toRadians(lon - meridian));
+		if (cos > 0) {
+			final double nearest = Math.toDegrees(Math.atan(Math.tan(Math
+				.toRadians(lat)) / cos));
+			return Position.distance(lat, lon, clamp(nearest, node), meridian);
+		}
+		// the point of the meridian found is the farthest - take the corners
+		return Math.min(Position.distance(lat, lon, minLatitude[node],
+			meridian), Position.distance(lat, lon, maxLatitude[node], meridian));
+	}
+
+	private double clamp(double lat, int node) {
+		return Math.max(minLatitude[node], Math.min(maxLatitude[node], lat));
+	}
+
+	/** The leaves of the tree of {@code size} positions - the root if 0 */
+	private static int leafCount(int size) {
+		return (size - 1) / NODE_SIZE + 1; // no overflow, 1 for 0
+	}
+
+	/** The nodes of the tree with the given leaves, the root included */
+	private static int nodeCount(int leaves) {
+		int count = 1; // the root
+		for (int level = leaves; level > 1; level = (level - 1) / NODE_SIZE
+			+ 1) {
+			count += level;
+		}
+		return count;
+	}
+
+	private void grow() {
+		final int capacity = time.length * 2;
+		final long[] t = new long[capacity];
+		System.arraycopy(time, 0, t, 0, size);
+		time = t;
+		final double[] lat = new double[capacity];
+		System.arraycopy(latitude, 0, lat, 0, size);
+		latitude = lat;
+		final double[] lon = new double[capacity];
+		System.arraycopy(longitude, 0, lon, 0, size);
+		longitude = lon;
+		final int[] prov = new int[capacity];
+		System.arraycopy(provider, 0, prov, 0, size);
+		provider = prov;
+		final int[] dev = new int[capacity];
+		System.arraycopy(device, 0, dev, 0, size);
+		device = dev;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: "
+				+ size);
+	}
+}
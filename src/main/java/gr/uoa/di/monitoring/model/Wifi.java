@@ -3,6 +3,10 @@ package gr.uoa.di.monitoring.model;
 import android.content.Context;
 import android.net.wifi.ScanResult;
 
+import gr.uoa.di.java.helpers.StringPool;
+import gr.uoa.di.monitoring.android.files.DataType;
+import gr.uoa.di.monitoring.android.files.Decoder;
+import gr.uoa.di.monitoring.android.files.Encoder;
 import gr.uoa.di.monitoring.android.files.Parser;
 import gr.uoa.di.monitoring.android.files.ParserException;
 import gr.uoa.di.monitoring.android.files.Persist;
@@ -11,23 +15,32 @@ import gr.uoa.di.monitoring.android.files.Store;
 import org.apache.http.util.EncodingUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.EnumMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import static gr.uoa.di.java.helpers.Utils.arrayToLong;
+import static gr.uoa.di.java.helpers.Utils.arrayToString;
 import static gr.uoa.di.java.helpers.Utils.listToLong;
 import static gr.uoa.di.java.helpers.Utils.listToString;
 
 public final class Wifi extends Data {
 
 	final List<Network> networks = new ArrayList<Wifi.Network>();
+	/** Access via {@link #fingerprint()} - lazily created from networks */
+	private Fingerprint fingerprint;
 	private static final String FILE_PREFIX = "wifi";
+	/** The SSIDs seen by the parser lately - a cache, see StringPool */
+	private static final StringPool SSIDS = new StringPool(
+		Store.FILES_ENCODING, 1 << 12);
 
 	private Wifi() {}
 
+
 	private enum WifiFields implements
 			Fields<List<ScanResult>, Wifi, List<List<Byte>>> {
 		/*
@@ -60,6 +73,26 @@ public final class Wifi extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Wifi wi) throws ParserException {
+				try {
+					wi.time = arrayToLong(array, offset, length);
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Wifi wi, Encoder out) {
+				out.writeTime(wi.time);
+			}
+
+			@Override
+			public void read(Decoder in, final Wifi wi) throws ParserException {
+				wi.time = in.readTime();
+			}
 		},
 		SSID(true) {
 
@@ -107,6 +140,38 @@ public final class Wifi extends Data {
 					throw new ParserException("Malformed file", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Wifi wi) throws ParserException {
+				// wi.networks FIRST POPULATED HERE !!!!!!!!!!!!!!!!!!!!!!!!!!!
+				try {
+					// ISSUE 6 - see above
+					Network n = new Network();
+					n.ssid = SSIDS.get(array, offset, length);
+					wi.networks.add(n);
+				} catch (UnsupportedEncodingException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Wifi wi, Encoder out) {
+				out.writeCount(wi.networks.size());
+				for (Network n : wi.networks) {
+					out.writeString(n.ssid);
+				}
+			}
+
+			@Override
+			public void read(Decoder in, final Wifi wi) throws ParserException {
+				// wi.networks FIRST POPULATED HERE !!!!!!!!!!!!!!!!!!!!!!!!!!!
+				for (int i = in.readCount(); i > 0; --i) {
+					Network n = new Network();
+					n.ssid = in.readString(SSIDS);
+					wi.networks.add(n);
+				}
+			}
 		},
 		BSSID(true) {
 
@@ -119,7 +184,7 @@ public final class Wifi extends Data {
 					int i = 0;
 					for (ScanResult loc : scanRes) {
 						final String bssid = loc.BSSID;
-						nets.get(i++).bssid = bssid;
+						nets.get(i++).bssid(bssid);
 						arrayList.add(EncodingUtils.getAsciiBytes(bssid));
 					}
 				}
@@ -137,7 +202,7 @@ public final class Wifi extends Data {
 							String bssid = listToString(lb,
 								Store.FILES_ENCODING);
 							Network n = nets.get(i++);
-							n.bssid = bssid;
+							n.bssid(bssid);
 						}
 						if (i < nets.size())
 							throw new ParserException(
@@ -152,6 +217,35 @@ public final class Wifi extends Data {
 						"Malformed file : extra BSSIDs with no SSID", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Wifi wi) throws ParserException {
+				try {
+					network(wi, index, "BSSIDs").bssid(array, offset, length);
+				} catch (UnsupportedEncodingException e) {
+					throw new ParserException("Malformed file : missing ", e);
+				}
+			}
+
+			/** Packed BSSIDs take 8 bytes, the rest NO_MAC and a string */
+			@Override
+			public void write(Wifi wi, Encoder out) {
+				out.writeCount(wi.networks.size());
+				for (Network n : wi.networks) {
+					out.writeLong(n.mac);
+					if (n.mac == NO_MAC) out.writeString(n.bssid());
+				}
+			}
+
+			@Override
+			public void read(Decoder in, final Wifi wi) throws ParserException {
+				for (Network n : networks(in, wi, "BSSIDs")) {
+					final long mac = in.readLong();
+					if (mac == NO_MAC) n.bssid(in.readString());
+					else n.mac = mac;
+				}
+			}
 		},
 		FREQUENCY(true) {
 
@@ -196,6 +290,32 @@ public final class Wifi extends Data {
 							+ "frequencies", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Wifi wi) throws ParserException {
+				try {
+					network(wi, index, "frequencies").frequency = (int) arrayToLong(
+						array, offset, length);
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Wifi wi, Encoder out) {
+				out.writeCount(wi.networks.size());
+				for (Network n : wi.networks) {
+					out.writeInt(n.frequency);
+				}
+			}
+
+			@Override
+			public void read(Decoder in, final Wifi wi) throws ParserException {
+				for (Network n : networks(in, wi, "frequencies")) {
+					n.frequency = in.readInt();
+				}
+			}
 		},
 		LEVEL(true) {
 
@@ -238,6 +358,32 @@ public final class Wifi extends Data {
 						"Malformed file : extra level with no SSIDs", e);
 				}
 			}
+
+			@Override
+			public void parse(byte[] array, int offset, int length,
+					int index, final Wifi wi) throws ParserException {
+				try {
+					network(wi, index, "level").level = (int) arrayToLong(
+						array, offset, length);
+				} catch (NumberFormatException e) {
+					throw new ParserException("Malformed file", e);
+				}
+			}
+
+			@Override
+			public void write(Wifi wi, Encoder out) {
+				out.writeCount(wi.networks.size());
+				for (Network n : wi.networks) {
+					out.writeInt(n.level);
+				}
+			}
+
+			@Override
+			public void read(Decoder in, final Wifi wi) throws ParserException {
+				for (Network n : networks(in, wi, "level")) {
+					n.level = in.readInt();
+				}
+			}
 		};
 
 		private boolean isList;
@@ -250,21 +396,82 @@ public final class Wifi extends Data {
 		public boolean isList() {
 			return isList;
 		}
+
+		/**
+		 * Returns the network at {@code index} - the networks are created by
+		 * SSID which is parsed first.
+		 *
+		 * @throws ParserException
+		 *             if there is no such network
+		 */
+		private static Network network(Wifi wi, int index, String what)
+				throws ParserException {
+			if (index >= wi.networks.size())
+				throw new ParserException("Malformed file : extra " + what
+					+ " with no SSID");
+			return wi.networks.get(index);
+		}
+
+		/**
+		 * Reads the number of values of a list field and returns the networks
+		 * they belong to - created by SSID which is read first.
+		 *
+		 * @throws ParserException
+		 *             if the number of values is not the number of networks
+		 */
+		private static List<Network> networks(Decoder in, Wifi wi, String what)
+				throws ParserException {
+			final int count = in.readCount();
+			if (count != wi.networks.size())
+				throw new ParserException("Malformed file : " + count + " "
+					+ what + " for " + wi.networks.size() + " SSIDs");
+			return wi.networks;
+		}
 	}
 
-	private static class Network {
+	static class Network {
 
 		String ssid;
-		String bssid;
+		/**
+		 * The BSSID packed in the low 48 bits - or {@link #NO_MAC} if the
+		 * BSSID is not a lower case MAC address (xx:xx:xx:xx:xx:xx)
+		 */
+		long mac = NO_MAC;
+		/** Access via {@link #bssid()} - lazily created from mac */
+		private String bssid;
 		int frequency;
 		int level;
+		/** Set by the {@link Fingerprint} of the scan - see key() there */
+		long key;
 		private static final String SEP = ", ";
 
 		Network() {}
 
+		/**
+		 * Returns the BSSID of the network. If it was parsed from a file the
+		 * String is created on the first call.
+		 */
+		String bssid() {
+			String b = bssid; // racy single check - Strings are immutable
+			if (b == null && mac != NO_MAC) bssid = b = macToString(mac);
+			return b;
+		}
+
+		void bssid(String b) {
+			mac = packMac(b);
+			bssid = b;
+		}
+
+		void bssid(byte[] array, int offset, int length)
+				throws UnsupportedEncodingException {
+			mac = packMac(array, offset, length);
+			bssid = (mac != NO_MAC) ? null : arrayToString(array, offset,
+				length, Store.FILES_ENCODING);
+		}
+
 		@Override
 		public String toString() {
-			return "Ssid" + IS + ssid + SEP + "Bssid" + IS + bssid + SEP
+			return "Ssid" + IS + ssid + SEP + "Bssid" + IS + bssid() + SEP
 				+ "Frequency" + IS + frequency + SEP + "Level" + IS + level;
 		}
 
@@ -276,44 +483,228 @@ public final class Wifi extends Data {
 		 */
 		boolean fairlyEqual(final Network net) {
 			if (net == null) return false;
-			return net.ssid.equals(this.ssid) && net.bssid.equals(this.bssid);
+			if (!net.ssid.equals(this.ssid)) return false;
+			if (net.mac != NO_MAC && this.mac != NO_MAC)
+				return net.mac == this.mac;
+			return net.bssid().equals(this.bssid());
+		}
+
+		/** True if neither the ssid nor the bssid is null */
+		boolean isComparable() {
+			return ssid != null && (mac != NO_MAC || bssid != null);
 		}
 
 		static Network fromString(String string) {
 			final Network network = new Network();
 			String[] split = string.split(SEP);
 			network.ssid = split[0].split(IS)[1].trim();
-			network.bssid = split[1].split(IS)[1].trim();
+			network.bssid(split[1].split(IS)[1].trim());
 			return network;
 		}
 	}
 
 	// =========================================================================
-	// Static API
+	// BSSID packing
 	// =========================================================================
-	public static List<Wifi> parse(File f) throws IOException, ParserException {
-		final File file = new File(f, FILE_PREFIX);
-		final FileInputStream fis = new FileInputStream(file);
-		List<EnumMap<WifiFields, List<List<Byte>>>> entries;
-		try {
-			entries = Parser.getEntries(fis, WifiFields.class);
-		} finally {
-			try {
-				fis.close();
-			} catch (IOException e) {
-				// could not close the file ?
-				e.printStackTrace();
+	/** Network.mac value for BSSIDs that are not MAC addresses */
+	static final long NO_MAC = -1;
+	/** Length of "xx:xx:xx:xx:xx:xx" */
+	private static final int MAC_LENGTH = 17;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Packs a MAC address given as "xx:xx:xx:xx:xx:xx" with lower case hex
+	 * digits - as android reports them - in the low 48 bits of a long. Returns
+	 * {@link #NO_MAC} for any other String, so {@link #macToString(long)}
+	 * gives back the very same String for the packed values.
+	 */
+	static long packMac(String s) {
+		if (s == null || s.length() != MAC_LENGTH) return NO_MAC;
+		long mac = 0;
+		for (int i = 0; i < MAC_LENGTH; ++i) {
+			final char c = s.charAt(i);
+			if (i % 3 == 2) {
+				if (c != ':') return NO_MAC;
+				continue;
 			}
+			final int digit = hexDigit(c);
+			if (digit == -1) return NO_MAC;
+			mac = (mac << 4) | digit;
 		}
-		final List<Wifi> data = new ArrayList<Wifi>();
-		for (EnumMap<WifiFields, List<List<Byte>>> enumMap : entries) {
-			Wifi bat = new Wifi();
-			for (WifiFields field : enumMap.keySet()) {
-				field.parse(enumMap.get(field), bat);
+		return mac;
+	}
+
+	/** Same as {@link #packMac(String)} for ASCII bytes */
+	static long packMac(byte[] array, int offset, int length) {
+		if (length != MAC_LENGTH) return NO_MAC;
+		long mac = 0;
+		for (int i = 0; i < MAC_LENGTH; ++i) {
+			final int c = array[offset + i];
+			if (i % 3 == 2) {
+				if (c != ':') return NO_MAC;
+				continue;
+			}
+			final int digit = hexDigit(c);
+			if (digit == -1) return NO_MAC;
+			mac = (mac << 4) | digit;
+		}
+		return mac;
+	}
+
+	static String macToString(long mac) {
+		final char[] chars = new char[MAC_LENGTH];
+		for (int i = MAC_LENGTH - 1; i >= 0; --i) {
+			if (i % 3 == 2) {
+				chars[i] = ':';
+				continue;
 			}
-			data.add(bat);
+			chars[i] = HEX_DIGITS[(int) (mac & 0xf)];
+			mac >>>= 4;
+		}
+		return new String(chars);
+	}
+
+	private static int hexDigit(int c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		return -1;
+	}
+
+	// =========================================================================
+	// Fingerprint
+	// =========================================================================
+	/**
+	 * The networks of a scan sorted by a hash of their ssid and bssid - which
+	 * networks fairly equal to each other share - so two scans are compared
+	 * by merging their networks in one pass. Immutable.
+	 */
+	private static final class Fingerprint {
+
+		final Network[] networks;
+		/** The key of each network - see {@link #key(Network)} */
+		final long[] keys;
+		/** A hash of the set of the keys, order independent */
+		final long hash;
+		/** False if some networks are fairly equal to each other */
+		final boolean distinct;
+
+		Fingerprint(List<Network> nets) {
+			networks = nets.toArray(new Network[nets.size()]);
+			for (Network n : networks) {
+				n.key = key(n);
+			}
+			Arrays.sort(networks, new Comparator<Network>() {
+
+				@Override
+				public int compare(Network n1, Network n2) {
+					return (n1.key < n2.key) ? -1 : ((n1.key == n2.key) ? 0
+							: 1);
+				}
+			});
+			keys = new long[networks.length];
+			long h = networks.length;
+			boolean unique = true;
+			for (int i = 0; i < networks.length; ++i) {
+				keys[i] = networks[i].key;
+				if (i > 0 && keys[i] == keys[i - 1]
+					&& networks[i].fairlyEqual(networks[i - 1])) unique = false;
+				h = mix(h * 31 + keys[i]);
+			}
+			hash = h;
+			distinct = unique;
+		}
+
+		/**
+		 * Returns true if every network of {@code sub} is fairly equal to a
+		 * network of this - in one pass over the sorted networks.
+		 */
+		boolean contains(Fingerprint sub) {
+			int j = 0;
+			main: for (int i = 0; i < sub.networks.length; ++i) {
+				final long key = sub.keys[i];
+				while (j < keys.length && keys[j] < key) ++j;
+				for (int k = j; k < keys.length && keys[k] == key; ++k) {
+					if (networks[k].fairlyEqual(sub.networks[i])) continue main;
+				}
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * The hash of the ssid and bssid of the network - equal for fairly
+		 * equal networks, as those have the same ssid and either the same
+		 * packed mac or the same (not packed) bssid.
+		 *
+		 * @throws NullPointerException
+		 *             if the ssid of the network is null
+		 */
+		private static long key(Network n) {
+			final long bssid = (n.mac != NO_MAC) ? n.mac : n.bssid()
+				.hashCode();
+			return mix(n.ssid.hashCode() * 0x9e3779b97f4a7c15L ^ bssid);
+		}
+
+		/** The finalizer of MurmurHash3 - spreads the bits of h */
+		private static long mix(long h) {
+			h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+			h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+			return h ^ (h >>> 33);
+		}
+	}
+
+	/** Racy single check - Fingerprints are immutable */
+	private Fingerprint fingerprint() {
+		Fingerprint f = fingerprint;
+		if (f == null) fingerprint = f = new Fingerprint(networks);
+		return f;
+	}
+
+	// =========================================================================
+	// Static API
+	// =========================================================================
+	/** The {@link DataType} of {@link Wifi}, registered with the Parser */
+	public static final DataType<Wifi, ?> TYPE = new DataType<Wifi, WifiFields>(
+		Wifi.class, FILE_PREFIX, WifiFields.class) {
+
+		@Override
+		protected Wifi newInstance() {
+			return new Wifi();
 		}
-		return data;
+	};
+
+	public static List<Wifi> parse(File f) throws IOException, ParserException {
+		return TYPE.parse(f);
+	}
+
+	/**
+	 * Parses the file in the given directory splitting it in up to
+	 * {@code parallelism} parts decoded on the executor's threads. See
+	 * {@link DataType#parse(File, ExecutorService, int)}.
+	 */
+	public static List<Wifi> parse(File f, ExecutorService executor,
+			int parallelism) throws IOException, ParserException {
+		return TYPE.parse(f, executor, parallelism);
+	}
+
+	/**
+	 * Parses the wifi file in the given directory passing the Wifi instances to
+	 * the sink one by one - the file is never loaded in memory as a whole.
+	 */
+	public static void stream(File f, Parser.Sink<? super Wifi> sink)
+			throws IOException, ParserException {
+		TYPE.stream(f, sink);
+	}
+
+	/**
+	 * Parses the wifi file in the given directory adding the scans to the
+	 * given {@link WifiIndex} as coming from the given device - the scans are
+	 * dropped once their networks are indexed. Call it for the directory of
+	 * each device and query the index once done.
+	 */
+	public static void index(File f, String device, WifiIndex index)
+			throws IOException, ParserException {
+		TYPE.stream(f, index.sink(device));
 	}
 
 	/**
@@ -332,13 +723,51 @@ public final class Wifi extends Data {
 		return p;
 	}
 
+	/**
+	 * Finds the runs of consecutive scans that are fairly equal to the scan
+	 * before them, in one pass - for instance to keep one scan per run. Each
+	 * scan is compared to the previous one only, via
+	 * {@link #fairlyEqual(Data)}.
+	 *
+	 * @param scans
+	 *            the scans, typically in the order of their time
+	 * @return the index of the first scan of each run, in ascending order -
+	 *         run i spans the scans from the i-th index (inclusive) to the
+	 *         next one (exclusive) or the end of the list - empty if there
+	 *         are no scans
+	 * @throws NullPointerException
+	 *             if any of the scans is null or has networks with null ssid
+	 *             or bssid
+	 */
+	public static int[] runs(List<Wifi> scans) {
+		int[] starts = new int[Math.min(scans.size(), 16)];
+		int runs = 0;
+		Wifi previous = null;
+		int i = 0;
+		for (Wifi scan : scans) { // the list may not be RandomAccess
+			if (previous == null || !scan.fairlyEqual(previous)) {
+				if (runs == starts.length) {
+					final int[] bigger = new int[starts.length * 2];
+					System.arraycopy(starts, 0, bigger, 0, runs);
+					starts = bigger;
+				}
+				starts[runs++] = i;
+			}
+			previous = scan;
+			++i;
+		}
+		if (runs == starts.length) return starts;
+		final int[] result = new int[runs];
+		System.arraycopy(starts, 0, result, 0, runs);
+		return result;
+	}
+
 	public static Wifi saveData(Context ctx, List<ScanResult> data)
 			throws IOException {
 		final Wifi out = new Wifi();
 		List<List<byte[]>> listOfListsOfByteArrays = createListOfListsOfByteArrays(
 			data, out);
-		Persist.saveData(ctx, FILE_PREFIX, listOfListsOfByteArrays,
-			WifiFields.class);
+		Persist.saveData(ctx, TYPE, out, listOfListsOfByteArrays);
 		return out;
 	}
 
@@ -392,7 +821,9 @@ public final class Wifi extends Data {
 
 	/**
 	 * Two Wifi instances are fairlyEqual if they contain the same number of
-	 * fairly equal (ssid and bssid) networks
+	 * fairly equal (ssid and bssid) networks. Takes time linear to the number
+	 * of networks - the networks of each instance are sorted once, on the
+	 * first call (see {@link Fingerprint}).
 	 *
 	 * @throws NullPointerException
 	 *             if d.networks == null or if any of the w.networks has null
@@ -403,11 +834,17 @@ public final class Wifi extends Data {
 		if (d == null || !(d instanceof Wifi)) return false;
 		final Wifi w = (Wifi) d;
 		if (w.networks.size() != this.networks.size()) return false;
-		main: for (Network net : w.networks) {
-			for (Network thisNet : this.networks) {
-				if (thisNet.fairlyEqual(net)) continue main;
-			}
+		final Fingerprint mine = fingerprint(), theirs = w.fingerprint();
+		// sets of distinct networks of the same size must be equal
+		if (mine.distinct && theirs.distinct && mine.hash != theirs.hash)
 			return false;
+		return mine.contains(theirs);
+	}
+
+	@Override
+	public boolean isComparable() {
+		for (Network n : networks) {
+			if (!n.isComparable()) return false;
 		}
 		return true;
 	}
@@ -0,0 +1,349 @@
+package gr.uoa.di.monitoring.model;
+
+import gr.uoa.di.monitoring.android.files.Parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index of Wifi scans, possibly of many devices, by BSSID - finds the
+ * scans sharing the most (and the strongest) networks with a live scan in time
+ * proportional to the entries of its networks, instead of comparing it to each
+ * scan. Each BSSID seen maps to the list of the scans it appears in, with its
+ * level there; the scans are numbered in the order they are added and their
+ * time and device are kept in primitive arrays. Filled while the files are
+ * parsed - see {@link Wifi#index(java.io.File, String, WifiIndex)}. Not
+ * thread safe, not even for queries.
+ */
+public final class WifiIndex {
+
+	/**
+	 * Levels at or below this (in dBm) weigh 1 - the weight of a level is how
+	 * much it is above the noise floor, see {@link #weight(int)}
+	 */
+	public static final int NOISE_FLOOR = -100;
+	/** Levels at or above 0 dBm weigh as much as 0 */
+	private static final int MAX_WEIGHT = -NOISE_FLOOR;
+	private static final int INITIAL_CAPACITY = 1024;
+	/** Empty slots of the table of packed BSSIDs - never a packed mac */
+	private static final long NONE = Wifi.NO_MAC;
+	// the scans - in the order they were added
+	private long[] time = new long[INITIAL_CAPACITY];
+	private int[] device = new int[INITIAL_CAPACITY];
+	private int size;
+	private final List<String> devices = new ArrayList<String>();
+	private final Map<String, Integer> deviceCodes = new HashMap<String, Integer>();
+	// the BSSIDs - numbered in the order they are first seen
+	/** Open addressing table of the packed BSSIDs - see {@link #slot(long)} */
+	private long[] macs = new long[INITIAL_CAPACITY];
+	/** The number of the BSSID in the slot */
+	private int[] terms = new int[INITIAL_CAPACITY];
+	/** The numbers of the BSSIDs that are not MAC addresses */
+	private final Map<String, Integer> others = new HashMap<String, Integer>();
+	private int bssids;
+	/** The scan and level of each entry of the BSSID, one after the other */
+	private int[][] postings = new int[INITIAL_CAPACITY][];
+	/** The number of ints used in the postings of the BSSID */
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private long entries;
+	// query state, reset after each query
+	/** The score of each scan in the query, 0 if not touched */
+	private int[] scores = new int[INITIAL_CAPACITY];
+	private int[] touched = new int[INITIAL_CAPACITY];
+
+	public WifiIndex() {
+		Arrays.fill(macs, NONE);
+	}
+
+	// =========================================================================
+	// API - filling the index
+	// =========================================================================
+	/**
+	 * Adds the networks of the given scan - the instance itself is not
+	 * retained. A BSSID seen more than once in the scan is added once, with
+	 * its highest level.
+	 *
+	 * @param scan
+	 *            the scan
+	 * @param deviceId
+	 *            the device the scan comes from, may be null
+	 * @return the number of the scan, to be passed to the accessors
+	 * @throws NullPointerException
+	 *             if a network of the scan has a null bssid
+	 */
+	public int add(Wifi scan, String deviceId) {
+		if (size == time.length) grow();
+		final int index = size++;
+		time[index] = scan.time;
+		Integer code = deviceCodes.get(deviceId);
+		if (code == null) {
+			code = devices.size();
+			devices.add(deviceId);
+			deviceCodes.put(deviceId, code);
+		}
+		device[index] = code;
+		final long[] keys = keys(scan, true);
+		for (long key : keys) {
+			final int term = term(key);
+			int[] list = postings[term];
+			final int length = lengths[term];
+			if (list == null) postings[term] = list = new int[4];
+			else if (length == list.length) {
+				final int[] bigger = new int[length * 2];
+				System.arraycopy(list, 0, bigger, 0, length);
+				postings[term] = list = bigger;
+			}
+			list[length] = index;
+			list[length + 1] = level(key);
+			lengths[term] = length + 2;
+		}
+		entries += keys.length;
+		return index;
+	}
+
+	/**
+	 * Returns a sink adding the scans it receives from the given device - to
+	 * be passed to the parser, see {@link Wifi#index(java.io.File, String,
+	 * WifiIndex)}.
+	 */
+	public Parser.Sink<Wifi> sink(final String deviceId) {
+		return new Parser.Sink<Wifi>() {
+
+			@Override
+			public void accept(Wifi datum) {
+				add(datum, deviceId);
+			}
+		};
+	}
+
+	// =========================================================================
+	// API - queries
+	// =========================================================================
+	/**
+	 * Returns the k scans most similar to the given one, most similar first -
+	 * fewer if fewer scans share a BSSID with it. See
+	 * {@link #top(Wifi, int, int[])}.
+	 */
+	public int[] top(Wifi scan, int k) {
+		return top(scan, k, null);
+	}
+
+	/**
+	 * Returns the k scans most similar to the given one, most similar first -
+	 * fewer if fewer scans share a BSSID with it. The similarity of two scans
+	 * is the sum over the BSSIDs they share of the smaller of the weights of
+	 * their levels, so a network seen strongly in both counts the most; scans
+	 * equally similar are in the order they were added. Takes time linear to
+	 * the entries of the BSSIDs of the scan - plus sorting the scans found.
+	 *
+	 * @param scan
+	 *            the live scan - its networks may have no ssid
+	 * @param k
+	 *            the maximum number of scans returned
+	 * @param similarity
+	 *            if not null, filled with the similarity of each scan
+	 *            returned - must have at least as many elements
+	 * @return the numbers of the scans, as returned by add
+	 */
+	public int[] top(Wifi scan, int k, int[] similarity) {
+		int found = 0;
+		for (long key : keys(scan, false)) {
+			final int term = term(key);
+			final int weight = weight(level(key));
+			final int[] list = postings[term];
+			for (int i = 0, length = lengths[term]; i < length; i += 2) {
+				final int s = list[i];
+				if (scores[s] == 0) touched[found++] = s;
+				scores[s] += Math.min(weight, weight(list[i + 1]));
+			}
+		}
+		// highest score first, then lowest number
+		final long[] ranked = new long[found];
+		for (int i = 0; i < found; ++i) {
+			final int s = touched[i];
+			ranked[i] = (long) scores[s] << 32 | (~s & 0xffffffffL);
+			scores[s] = 0;
+		}
+		Arrays.sort(ranked);
+		final int[] result = new int[Math.min(k, found)];
+		for (int i = 0; i < result.length; ++i) {
+			final long r = ranked[found - 1 - i];
+			result[i] = ~(int) r;
+			if (similarity != null) similarity[i] = (int) (r >>> 32);
+		}
+		return result;
+	}
+
+	/**
+	 * The weight of a level in the similarity of scans - from 1 for the
+	 * weakest to 100 for levels of 0 dBm or more.
+	 */
+	public static int weight(int level) {
+		return Math.max(1, Math.min(MAX_WEIGHT, level - NOISE_FLOOR));
+	}
+
+	// =========================================================================
+	// API - accessors
+	// =========================================================================
+	/** The number of scans added */
+	public int size() {
+		return size;
+	}
+
+	/** The number of distinct BSSIDs seen */
+	public int bssids() {
+		return bssids;
+	}
+
+	/** The number of entries in all the lists, one per BSSID per scan */
+	public long entries() {
+		return entries;
+	}
+
+	public long time(int i) {
+		checkIndex(i);
+		return time[i];
+	}
+
+	/** The device the i-th scan comes from, null if not given */
+	public String device(int i) {
+		checkIndex(i);
+		return devices.get(device[i]);
+	}
+
+	@Override
+	public String toString() {
+		return "WifiIndex" + Data.IS + size + " scans, " + bssids
+			+ " BSSIDs, " + entries + " entries, " + devices.size()
+			+ " devices";
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * Returns the BSSIDs of the scan with their levels, each once - packed as
+	 * the number of the BSSID in the high int and the level in the low one,
+	 * see {@link #level(long)}. If {@code add} is false the BSSIDs never seen
+	 * are left out, else they are numbered.
+	 */
+	private long[] keys(Wifi scan, boolean add) {
+		final List<Wifi.Network> nets = scan.networks;
+		final long[] keys = new long[nets.size()];
+		int count = 0;
+		for (Wifi.Network n : nets) {
+			final int term = add ? number(n) : find(n);
+			if (term < 0) continue;
+			// the highest level sorts first
+			keys[count++] = (long) term << 32
+				| ((long) Integer.MAX_VALUE - n.level);
+		}
+		Arrays.sort(keys, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; ++i) {
+			if (distinct > 0 && term(keys[distinct - 1]) == term(keys[i]))
+				continue;
+			keys[distinct++] = keys[i];
+		}
+		if (distinct == keys.length) return keys;
+		final long[] result = new long[distinct];
+		System.arraycopy(keys, 0, result, 0, distinct);
+		return result;
+	}
+
+	private static int term(long key) {
+		return (int) (key >>> 32);
+	}
+
+	private static int level(long key) {
+		return (int) ((long) Integer.MAX_VALUE - (key & 0xffffffffL));
+	}
+
+	/** The number of the BSSID of the network, or -1 if never seen */
+	private int find(Wifi.Network n) {
+		if (n.mac == Wifi.NO_MAC) {
+			final Integer term = others.get(n.bssid());
+			return (term == null) ? -1 : term;
+		}
+		final int slot = slot(n.mac);
+		return (macs[slot] == NONE) ? -1 : terms[slot];
+	}
+
+	/** The number of the BSSID of the network, numbering it if never seen */
+	private int number(Wifi.Network n) {
+		if (n.mac == Wifi.NO_MAC) {
+			final String bssid = n.bssid();
+			if (bssid == null) throw new NullPointerException("Null bssid");
+			Integer term = others.get(bssid);
+			if (term == null) others.put(bssid, term = newTerm());
+			return term;
+		}
+		int slot = slot(n.mac);
+		if (macs[slot] == NONE) {
+			if ((bssids - others.size() + 1) * 2 > macs.length) {
+				growTable();
+				slot = slot(n.mac);
+			}
+			macs[slot] = n.mac;
+			terms[slot] = newTerm();
+		}
+		return terms[slot];
+	}
+
+	private int newTerm() {
+		if (bssids == postings.length) {
+			final int[][] p = new int[bssids * 2][];
+			System.arraycopy(postings, 0, p, 0, bssids);
+			postings = p;
+			final int[] l = new int[bssids * 2];
+			System.arraycopy(lengths, 0, l, 0, bssids);
+			lengths = l;
+		}
+		return bssids++;
+	}
+
+	/** The slot of the packed BSSID, or of the empty one to add it */
+	private int slot(long mac) {
+		final int mask = macs.length - 1;
+		int slot = (int) (mac * 0x9e3779b97f4a7c15L >>> 32) & mask;
+		while (macs[slot] != NONE && macs[slot] != mac) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void growTable() {
+		final long[] oldMacs = macs;
+		final int[] oldTerms = terms;
+		macs = new long[oldMacs.length * 2];
+		terms = new int[oldTerms.length * 2];
+		Arrays.fill(macs, NONE);
+		for (int i = 0; i < oldMacs.length; ++i) {
+			if (oldMacs[i] == NONE) continue;
+			final int slot = slot(oldMacs[i]);
+			macs[slot] = oldMacs[i];
+			terms[slot] = oldTerms[i];
+		}
+	}
+
+	private void grow() {
+		final int capacity = time.length * 2;
+		final long[] t = new long[capacity];
+		System.arraycopy(time, 0, t, 0, size);
+		time = t;
+		final int[] d = new int[capacity];
+		System.arraycopy(device, 0, d, 0, size);
+		device = d;
+		scores = new int[capacity]; // all 0 between queries
+		touched = new int[capacity];
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: "
+				+ size);
+	}
+}
@@ -0,0 +1,154 @@
+package gr.uoa.di.java.helpers;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UtilsTest {
+
+	// =========================================================================
+	// arrayToLong
+	// =========================================================================
+	@Test
+	public void arrayToLongParsesAsParseLong() {
+		final String[] values = { "0", "7", "-7", "+7", "00042", "-0",
+				"1500000000000", "9223372036854775807",
+				"-9223372036854775808" };
+		for (String s : values) {
+			assertEquals(s, Long.parseLong(s), arrayToLong(s));
+		}
+		final Random random = new Random(7);
+		for (int i = 0; i < 100000; ++i) {
+			final long l = (i % 2 == 0) ? random.nextLong() : random
+				.nextInt(1 << 20) - (1 << 19);
+			final String s = Long.toString(l);
+			assertEquals(s, l, arrayToLong(s));
+		}
+	}
+
+	@Test
+	public void arrayToLongTruncatesOverflow() {
+		final String[] values = { "9223372036854775808",
+				"-9223372036854775809", "123456789012345678901234567890" };
+		for (String s : values) {
+			assertEquals(s, new BigInteger(s).longValue(), arrayToLong(s));
+		}
+	}
+
+	@Test
+	public void arrayToLongRejects() {
+		final String[] values = { "", "-", "+", "1L", "1.0", " 1", "1 ",
+				"--1", "1-", "0x10", "\u00b9" };
+		for (String s : values) {
+			try {
+				arrayToLong(s);
+				fail("Parsed " + s);
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void arrayToLongReadsTheSliceOnly() {
+		final byte[] array = ascii("99-123499");
+		assertEquals(-1234, Utils.arrayToLong(array, 2, 5));
+	}
+
+	// =========================================================================
+	// arrayToDouble
+	// =========================================================================
+	@Test
+	public void arrayToDoubleParsesAsParseDouble() {
+		final String[] values = { "0", "0.0", "-0.0", "+1", "1.", ".5",
+				"-.5", "37.9838", "-122.419416", "23.727538999999998",
+				"1e5", "1E-5", "1.5e+300", "4.9E-324",
+				"2.2250738585072014E-308", "1.7976931348623157E308", "1e400",
+				"-1e400", "1e-400",
+				"123456789012345678901234567890",
+				"0.1000000000000000055511151231257827",
+				"9007199254740993", "0.000000000000000000000000001",
+				"000123.4500" };
+		for (String s : values) {
+			assertSame(s, Double.parseDouble(s), arrayToDouble(s));
+		}
+	}
+
+	@Test
+	public void arrayToDoubleParsesToStringBack() {
+		final Random random = new Random(7);
+		for (int i = 0; i < 200000; ++i) {
+			final double d;
+			switch (i % 4) {
+			case 0: // a latitude
+				d = random.nextDouble() * 180 - 90;
+				break;
+			case 1: // a coordinate of a few decimals
+				d = Math.round(random.nextDouble() * 3600000) / 1e4 - 180;
+				break;
+			case 2:
+				d = random.nextGaussian() * 1e6;
+				break;
+			default:
+				d = Double.longBitsToDouble(random.nextLong());
+				if (Double.isNaN(d) || Double.isInfinite(d)) continue;
+			}
+			final String s = Double.toString(d);
+			assertSame(s, d, arrayToDouble(s));
+		}
+	}
+
+	@Test
+	public void arrayToDoubleRejects() {
+		final String[] values = { "", "-", "+", ".", "-.", "e5", ".e5", "1e",
+				"1e+", "1e-", "1.2.3", "1e5.0", "1d", "1f", " 1", "1 ",
+				"NaN", "Infinity", "-Infinity", "0x1p3", "1,5", "--1",
+				"1e2147483648" };
+		for (String s : values) {
+			try {
+				arrayToDouble(s);
+				fail("Parsed " + s);
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void arrayToDoubleReadsTheSliceOnly() {
+		final byte[] array = ascii("9937.5e19");
+		assertSame("37.5", 37.5, Utils.arrayToDouble(array, 2, 4));
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private static long arrayToLong(String s) {
+		final byte[] array = ascii(s);
+		return Utils.arrayToLong(array, 0, array.length);
+	}
+
+	private static double arrayToDouble(String s) {
+		final byte[] array = ascii(s);
+		return Utils.arrayToDouble(array, 0, array.length);
+	}
+
+	/** The chars of s as bytes - chars above 0xff are cut, to be rejected */
+	private static byte[] ascii(String s) {
+		final byte[] array = new byte[s.length()];
+		for (int i = 0; i < array.length; ++i) {
+			array[i] = (byte) s.charAt(i);
+		}
+		return array;
+	}
+
+	/** Doubles must be the same bit for bit - telling -0.0 from 0.0 */
+	private static void assertSame(String s, double expected, double actual) {
+		assertEquals(s, Double.doubleToLongBits(expected), Double
+			.doubleToLongBits(actual));
+	}
+}
@@ -0,0 +1,243 @@
+package gr.uoa.di.java.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZipWriterTest {
+
+	private static final int[] LEVELS = { 0, 1, 6, 9, Zip.ADAPTIVE_LEVEL };
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	// =========================================================================
+	// Tests
+	// =========================================================================
+	/** java.util.zip reads the entries - and checks their crc */
+	@Test
+	public void zipFolderOpensWithZipFile() throws Exception {
+		final File dir = folder();
+		final Map<String, byte[]> expected = contents(dir);
+		for (int level : LEVELS) {
+			for (ExecutorService e : Arrays.asList(null, executor)) {
+				final File zip = new File(folder.getRoot(), "out.zip");
+				Zip.zipFolder(dir.getPath(), zip.getPath(), level, e);
+				assertEntries("level " + level, expected, entries(zip));
+				final InputStream in = new FileInputStream(zip);
+				try {
+					assertEntries("level " + level, expected, entries(in));
+				} finally {
+					in.close();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void zipFolderOpensWithZip4j() throws Exception {
+		final File dir = folder();
+		final File zip = new File(folder.getRoot(), "out.zip");
+		Zip.zipFolder(dir.getPath(), zip.getPath(), Zip.ADAPTIVE_LEVEL,
+			executor);
+		final File unzipped = Zip.unZipFolder(zip, folder.newFolder()
+			.getAbsolutePath());
+		assertEntries("zip4j", files(dir, dir.getName() + "/"), files(
+			new File(unzipped, dir.getName()), dir.getName() + "/"));
+	}
+
+	/** The stream holds the zip zipFiles writes to a file */
+	@Test
+	public void zipFilesToStream() throws Exception {
+		final List<File> files = new ArrayList<File>();
+		final Random random = new Random(3);
+		// more than the entries deflated ahead
+		for (int i = 0; i < 40; ++i) {
+			files.add(file(folder.getRoot(), "file" + i, random
+				.nextInt(100000), random));
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Zip.zipFiles(files, "data", out, Zip.ADAPTIVE_LEVEL, executor);
+		final File zip = new File(folder.getRoot(), "out.zip");
+		Zip.zipFiles(files, "data", zip.getPath(), Zip.ADAPTIVE_LEVEL, null);
+		final Map<String, byte[]> expected = entries(zip);
+		assertEquals(files.size() + 1, expected.size());
+		assertTrue(expected.containsKey("data/"));
+		assertEntries("stream", expected, entries(new ByteArrayInputStream(
+			out.toByteArray())));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidLevelIsRejected() throws Exception {
+		Zip.zipFolder(folder().getPath(), new File(folder.getRoot(),
+			"out.zip").getPath(), 10, null);
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * A folder with empty, small, random and compressible files, a non ASCII
+	 * name, an empty and a nested folder.
+	 */
+	private File folder() throws IOException {
+		final Random random = new Random(7);
+		final File dir = folder.newFolder("monitoring");
+		file(dir, "empty", 0, random);
+		file(dir, "small", 10, random);
+		file(dir, "r\u00e9seau", 1000, random);
+		file(dir, "random", 300000, random);
+		final File nested = new File(dir, "nested");
+		assertTrue(nested.mkdir());
+		assertTrue(new File(dir, "none").mkdir());
+		final FileOutputStream fos = new FileOutputStream(new File(nested,
+			"text"));
+		try {
+			for (int i = 0; i < 100000; ++i) {
+				fos.write(("line " + i + "\n").getBytes(Utils.UTF8));
+			}
+		} finally {
+			fos.close();
+		}
+		return dir;
+	}
+
+	private static File file(File dir, String name, int size, Random random)
+			throws IOException {
+		final byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		final File file = new File(dir, name);
+		final FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(bytes);
+		} finally {
+			fos.close();
+		}
+		return file;
+	}
+
+	/** The entries a zip of the folder should have - folders map to null */
+	private static Map<String, byte[]> contents(File dir) throws IOException {
+		final Map<String, byte[]> contents = files(dir, dir.getName() + "/");
+		contents.put(dir.getName() + "/", null);
+		return contents;
+	}
+
+	private static Map<String, byte[]> files(File dir, String name)
+			throws IOException {
+		final Map<String, byte[]> files = new HashMap<String, byte[]>();
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				files.put(name + file.getName() + "/", null);
+				files.putAll(files(file, name + file.getName() + "/"));
+			} else {
+				final InputStream in = new FileInputStream(file);
+				try {
+					files.put(name + file.getName(), read(in));
+				} finally {
+					in.close();
+				}
+			}
+		}
+		return files;
+	}
+
+	private static Map<String, byte[]> entries(File zip) throws IOException {
+		final Map<String, byte[]> entries = new HashMap<String, byte[]>();
+		final ZipFile zipFile = new ZipFile(zip);
+		try {
+			for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e
+				.hasMoreElements();) {
+				final ZipEntry entry = e.nextElement();
+				if (entry.isDirectory()) {
+					entries.put(entry.getName(), null);
+					continue;
+				}
+				final InputStream in = zipFile.getInputStream(entry);
+				try {
+					final byte[] data = read(in);
+					assertEquals(entry.getName(), entry.getSize(),
+						data.length);
+					entries.put(entry.getName(), data);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			zipFile.close();
+		}
+		return entries;
+	}
+
+	/** Read as streamed - the sizes must be in the local headers */
+	private static Map<String, byte[]> entries(InputStream stream)
+			throws IOException {
+		final Map<String, byte[]> entries = new HashMap<String, byte[]>();
+		final ZipInputStream in = new ZipInputStream(stream);
+		for (ZipEntry entry; (entry = in.getNextEntry()) != null;) {
+			entries.put(entry.getName(), entry.isDirectory() ? null : read(in));
+		}
+		return entries;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		for (int read; (read = in.read(buffer)) != -1;) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/** Asserts the same names - and the same data for the files */
+	private static void assertEntries(String message,
+			Map<String, byte[]> expected, Map<String, byte[]> actual) {
+		assertEquals(message, expected.keySet(), actual.keySet());
+		for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+			final byte[] data = actual.get(entry.getKey());
+			if (entry.getValue() == null) {
+				assertNull(message + " " + entry.getKey(), data);
+			} else {
+				assertArrayEquals(message + " " + entry.getKey(),
+					entry.getValue(), data);
+			}
+		}
+	}
+}
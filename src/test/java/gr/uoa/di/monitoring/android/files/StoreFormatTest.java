@@ -0,0 +1,532 @@
+package gr.uoa.di.monitoring.android.files;
+
+import gr.uoa.di.monitoring.model.Data;
+import gr.uoa.di.monitoring.model.Position;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of the data file formats : files are written byte by byte as
+ * {@link Store} describes each format and parsed back with the
+ * {@link DataType} of {@link Position}.
+ */
+public class StoreFormatTest {
+
+	private static final String N = System.getProperty("line.separator");
+	private static final String[] PROVIDERS = { "gps", "network",
+			"r\u00e9seau" };
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	// =========================================================================
+	// Text
+	// =========================================================================
+	@Test
+	public void textRoundTrip() throws Exception {
+		final List<Fix> fixes = fixes(1000, 1);
+		final Text text = new Text();
+		for (Fix f : fixes) {
+			text.position(f);
+		}
+		assertEquals(expected(fixes), strings(parse(text.bytes())));
+	}
+
+	// =========================================================================
+	// Binary
+	// =========================================================================
+	@Test
+	public void version1RoundTrip() throws Exception {
+		final List<Fix> fixes = fixes(1000, 2);
+		final Binary binary = new Binary(Store.VERSION_1);
+		for (Fix f : fixes) {
+			binary.position(f);
+		}
+		assertEquals(expected(fixes), strings(parse(binary.bytes())));
+	}
+
+	@Test
+	public void textAndBinaryParseTheSame() throws Exception {
+		final List<Fix> fixes = fixes(1000, 3);
+		final Text text = new Text();
+		final Binary binary = new Binary(Store.VERSION);
+		for (Fix f : fixes) {
+			text.position(f);
+			binary.position(f);
+		}
+		assertEquals(strings(parse(text.bytes())), strings(parse(binary
+			.bytes())));
+	}
+
+	@Test
+	public void versionsRoundTrip() throws Exception {
+		final List<Fix> fixes = fixes(1000, 5);
+		for (byte version = Store.VERSION_2; version <= Store.VERSION;
+				++version) {
+			final Binary binary = new Binary(version);
+			for (Fix f : fixes) {
+				binary.position(f);
+			}
+			assertEquals("version " + version, expected(fixes),
+				strings(parse(binary.bytes())));
+		}
+	}
+
+	/**
+	 * The times are written as differences but for the keyframes - the
+	 * first entry and every {@link Store#KEYFRAME_INTERVAL}-th one.
+	 */
+	@Test
+	public void timesAcrossKeyframes() throws Exception {
+		final List<Fix> fixes = new ArrayList<Fix>();
+		for (int i = 0; i < 3 * Store.KEYFRAME_INTERVAL + 1; ++i) {
+			long time = 1500000000000L + i * 1000L;
+			// far back and forth around the keyframes
+			if (i % Store.KEYFRAME_INTERVAL == 0) time -= 1L << 40;
+			else if (i % Store.KEYFRAME_INTERVAL == 1) time += 1L << 40;
+			fixes.add(new Fix(time, i, -i, "gps"));
+		}
+		for (byte version = Store.VERSION_2; version <= Store.VERSION;
+				++version) {
+			final Binary binary = new Binary(version);
+			for (Fix f : fixes) {
+				binary.position(f);
+			}
+			assertEquals("version " + version, expected(fixes),
+				strings(parse(binary.bytes())));
+		}
+	}
+
+	@Test(expected = ParserException.class)
+	public void timeDifferenceBeforeKeyframeIsRejected() throws Exception {
+		final Binary binary = new Binary(Store.VERSION);
+		binary.position(fixes(1, 6).get(0), false);
+		parse(binary.bytes());
+	}
+
+	/** Files big enough to be split in ranges parse as when not split */
+	@Test
+	public void splitParsesAsSerial() throws Exception {
+		final List<Fix> fixes = fixes(120000, 7);
+		final List<String> expected = expected(fixes);
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final Text text = new Text();
+			for (Fix f : fixes) {
+				text.position(f);
+			}
+			assertSplitParsesAs(expected, text.bytes(), executor);
+			for (byte version = Store.VERSION_1; version <= Store.VERSION;
+					++version) {
+				final Binary binary = new Binary(version);
+				for (Fix f : fixes) {
+					binary.position(f);
+				}
+				assertSplitParsesAs(expected, binary.bytes(), executor);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/** The Encoder writes what the Decoder reads - as Persist frames it */
+	@Test
+	public void encoderRoundTrip() throws Exception {
+		final Binary binary = new Binary(Store.VERSION_1);
+		for (Fix f : fixes(1000, 8)) {
+			binary.position(f);
+		}
+		final List<Position> positions = parse(binary.bytes());
+		assertEquals(strings(positions), strings(parse(encode(positions))));
+	}
+
+	@Test
+	public void nullStringsRoundTrip() throws Exception {
+		final Binary binary = new Binary(Store.VERSION);
+		binary.position(new Fix(1000, 1, 2, null));
+		binary.position(new Fix(2000, 1, 2, ""));
+		final List<Position> positions = parse(binary.bytes());
+		assertFalse(positions.get(0).isComparable()); // null provider
+		assertTrue(positions.get(1).isComparable());
+		assertEquals(expected(Arrays.asList(new Fix(1000, 1, 2, null),
+			new Fix(2000, 1, 2, ""))), strings(positions));
+		final List<Position> encoded = parse(encode(positions));
+		assertFalse(encoded.get(0).isComparable());
+		assertTrue(encoded.get(1).isComparable());
+		assertEquals(strings(positions), strings(encoded));
+	}
+
+	// =========================================================================
+	// Repeats
+	// =========================================================================
+	/** A REPEAT line parses as a copy of the entry before at its own time */
+	@Test
+	public void textRepeats() throws Exception {
+		final List<Fix> fixes = runs(1000, 9);
+		assertEquals(expected(fixes), strings(parse(text(fixes))));
+	}
+
+	@Test
+	public void binaryRepeats() throws Exception {
+		final List<Fix> fixes = runs(1000, 10);
+		for (byte version = Store.VERSION_3; version <= Store.VERSION;
+				++version) {
+			assertEquals("version " + version, expected(fixes),
+				strings(parse(binary(version, fixes))));
+		}
+	}
+
+	@Test(expected = ParserException.class)
+	public void textRepeatWithNoEntryBeforeIsRejected() throws Exception {
+		parse(new Text().repeat(1000).bytes());
+	}
+
+	@Test
+	public void binaryRepeatWithNoEntryBeforeIsRejected() throws Exception {
+		// a keyframe, so the time has a base and the repeat is what fails
+		try {
+			parse(new Binary(Store.VERSION).repeat(2000, true).bytes());
+			fail("Parsed a repeat with no entry before it");
+		} catch (ParserException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("repeat"));
+		}
+	}
+
+	/** Ranges never start at a repeat - it needs the entry before */
+	@Test
+	public void repeatsSplitParseAsSerial() throws Exception {
+		final List<Fix> fixes = runs(150000, 11);
+		final List<String> expected = expected(fixes);
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			assertSplitParsesAs(expected, text(fixes), executor);
+			assertSplitParsesAs(expected, binary(Store.VERSION, fixes),
+				executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = ParserException.class)
+	public void unknownVersionIsRejected() throws Exception {
+		final Binary binary = new Binary((byte) (Store.VERSION + 1));
+		binary.position(fixes(1, 4).get(0));
+		parse(binary.bytes());
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** The values of a position written by the tests */
+	private static final class Fix {
+
+		final long time;
+		final double latitude;
+		final double longitude;
+		final String provider;
+
+		Fix(long time, double latitude, double longitude, String provider) {
+			this.time = time;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.provider = provider;
+		}
+
+		/** Whether this fix has the values of the given one (if not null) */
+		boolean repeats(Fix f) {
+			return f != null && latitude == f.latitude
+				&& longitude == f.longitude && provider.equals(f.provider);
+		}
+	}
+
+	/**
+	 * Returns {@code count} positions a few seconds apart - their times going
+	 * back now and then, their coordinates of many or few decimals.
+	 */
+	private static List<Fix> fixes(int count, long seed) {
+		final Random random = new Random(seed);
+		final List<Fix> fixes = new ArrayList<Fix>(count);
+		long time = 1500000000000L;
+		for (int i = 0; i < count; ++i) {
+			time += (random.nextInt(10) == 0) ? -random.nextInt(1000)
+				: random.nextInt(5000);
+			double latitude = random.nextDouble() * 180 - 90;
+			double longitude = random.nextDouble() * 360 - 180;
+			if (random.nextBoolean()) {
+				latitude = Math.round(latitude * 1e4) / 1e4;
+				longitude = Math.round(longitude * 1e4) / 1e4;
+			}
+			fixes.add(new Fix(time, latitude, longitude, PROVIDERS[random
+				.nextInt(PROVIDERS.length)]));
+		}
+		return fixes;
+	}
+
+	/**
+	 * Returns {@code count} positions, about a third of them repeating the
+	 * one before at a later time - in runs of up to 5.
+	 */
+	private static List<Fix> runs(int count, long seed) {
+		final Random random = new Random(seed);
+		final List<Fix> distinct = fixes(count, seed);
+		final List<Fix> fixes = new ArrayList<Fix>(count);
+		long time = 1500000000000L;
+		for (int i = 0; fixes.size() < count; ++i) {
+			final Fix f = distinct.get(i);
+			fixes.add(new Fix(time += random.nextInt(5000), f.latitude,
+				f.longitude, f.provider));
+			if (random.nextInt(3) != 0) continue;
+			for (int run = random.nextInt(5) + 1; run > 0
+				&& fixes.size() < count; --run) {
+				fixes.add(new Fix(time += random.nextInt(5000), f.latitude,
+					f.longitude, f.provider));
+			}
+		}
+		return fixes;
+	}
+
+	/** Writes the fixes as text - repeating the ones the same as the last */
+	private static byte[] text(List<Fix> fixes) throws IOException {
+		final Text text = new Text();
+		Fix last = null;
+		for (Fix f : fixes) {
+			if (f.repeats(last)) text.repeat(f.time);
+			else text.position(f);
+			last = f;
+		}
+		return text.bytes();
+	}
+
+	/** Writes the fixes in the given version, repeating as {@link #text} */
+	private static byte[] binary(byte version, List<Fix> fixes)
+			throws IOException {
+		final Binary binary = new Binary(version);
+		Fix last = null;
+		for (Fix f : fixes) {
+			if (f.repeats(last)) binary.repeat(f.time);
+			else binary.position(f);
+			last = f;
+		}
+		return binary.bytes();
+	}
+
+	/** The string form of the Positions of the given fixes */
+	private static List<String> expected(List<Fix> fixes) {
+		final List<String> strings = new ArrayList<String>(fixes.size());
+		for (Fix f : fixes) {
+			strings.add(f.time + N + "Longitude: " + f.longitude + N
+				+ "Latitude: " + f.latitude + N + "Provider: " + f.provider);
+		}
+		return strings;
+	}
+
+	private static List<String> strings(List<? extends Data> data) {
+		final List<String> strings = new ArrayList<String>(data.size());
+		for (Data d : data) {
+			strings.add(d.stringForm());
+		}
+		return strings;
+	}
+
+	/** Writes the given bytes to a position file and parses it */
+	private List<Position> parse(byte[] bytes) throws IOException,
+			ParserException {
+		return Position.TYPE.parse(write(bytes));
+	}
+
+	/**
+	 * Asserts the bytes, written to a position file, parse to the expected
+	 * positions when parsed on the executor split in up to 4 ranges.
+	 */
+	private void assertSplitParsesAs(List<String> expected, byte[] bytes,
+			ExecutorService executor) throws IOException, ParserException {
+		final File dir = write(bytes);
+		assertTrue("too small to split", new File(dir, Position.TYPE
+			.filename()).length() >= 2 << 20);
+		assertEquals(expected, strings(Position.TYPE.parse(dir)));
+		assertEquals(expected, strings(Position.TYPE.parse(dir, executor, 4)));
+	}
+
+	/**
+	 * Encodes the given positions with an {@link Encoder} in the current
+	 * version, each entry framed as Persist frames it.
+	 */
+	private static byte[] encode(List<Position> positions) {
+		final ByteArrayOutputStream file = new ByteArrayOutputStream();
+		file.write(Store.header(), 0, Store.HEADER_LENGTH);
+		final Encoder out = new Encoder(16);
+		final int start = Encoder.MAX_VARINT_LENGTH;
+		for (int i = 0; i < positions.size(); ++i) {
+			out.reset(start, i == 0);
+			Position.TYPE.write(positions.get(i), out);
+			final int prefix = (out.size() - start) << 2
+				| (out.keyframe() ? 1 : 0);
+			final int offset = start - Encoder.varintLength(prefix);
+			Encoder.writeVarint(prefix, out.buffer(), offset);
+			file.write(out.buffer(), offset, out.size() - offset);
+		}
+		return file.toByteArray();
+	}
+
+	/** Writes the given bytes to a position file in a new folder */
+	private File write(byte[] bytes) throws IOException {
+		final File dir = folder.newFolder();
+		final FileOutputStream fos = new FileOutputStream(new File(dir,
+			Position.TYPE.filename()));
+		try {
+			fos.write(bytes);
+		} finally {
+			fos.close();
+		}
+		return dir;
+	}
+
+	/** Writes a text file - the fields in ASCII, as Persist does */
+	private static final class Text {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		Text position(Fix f) throws IOException {
+			field(Long.toString(f.time));
+			field(Double.toString(f.latitude));
+			field(Double.toString(f.longitude));
+			final byte[] provider = f.provider.getBytes(Store.FILES_ENCODING);
+			out.write(provider, 0, provider.length);
+			out.write(Store.NEWLINE);
+			return this;
+		}
+
+		Text repeat(long time) {
+			out.write(Store.REPEAT);
+			final String ascii = Long.toString(time);
+			for (int i = 0; i < ascii.length(); ++i) {
+				out.write(ascii.charAt(i));
+			}
+			out.write(Store.NEWLINE);
+			return this;
+		}
+
+		byte[] bytes() {
+			return out.toByteArray();
+		}
+
+		private void field(String ascii) {
+			for (int i = 0; i < ascii.length(); ++i) {
+				out.write(ascii.charAt(i));
+			}
+			out.write(Store.DELIMITER);
+		}
+	}
+
+	/** Writes a binary file in the given version, as Store describes it */
+	private static final class Binary {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private final byte version;
+		private long previousTime;
+		private int entries;
+
+		Binary(byte version) {
+			this.version = version;
+			out.write(Store.MAGIC, 0, Store.MAGIC.length);
+			out.write(version);
+		}
+
+		/** Every {@link Store#KEYFRAME_INTERVAL}-th entry is a keyframe */
+		Binary position(Fix f) throws IOException {
+			return position(f, entries % Store.KEYFRAME_INTERVAL == 0);
+		}
+
+		Binary position(Fix f, boolean keyframe) throws IOException {
+			++entries;
+			final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+			time(entry, f.time, keyframe);
+			fixed(entry, Double.doubleToLongBits(f.latitude));
+			fixed(entry, Double.doubleToLongBits(f.longitude));
+			string(entry, f.provider);
+			return append(entry, keyframe, false);
+		}
+
+		/** A repeat entry - as of VERSION_3 */
+		Binary repeat(long time) {
+			return repeat(time, false);
+		}
+
+		Binary repeat(long time, boolean keyframe) {
+			++entries;
+			final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+			time(entry, time, keyframe);
+			return append(entry, keyframe, true);
+		}
+
+		byte[] bytes() {
+			return out.toByteArray();
+		}
+
+		private void time(ByteArrayOutputStream entry, long time,
+				boolean keyframe) {
+			if (version < Store.VERSION_2) {
+				fixed(entry, time);
+			} else {
+				final long value = keyframe ? time : time - previousTime;
+				varint(entry, (value << 1) ^ (value >> 63));
+			}
+			previousTime = time;
+		}
+
+		private void string(ByteArrayOutputStream entry, String s)
+				throws IOException {
+			if (s == null) { // as of VERSION_4
+				varint(entry, 0);
+				return;
+			}
+			final byte[] bytes = s.getBytes(Store.FILES_ENCODING);
+			varint(entry, (version < Store.VERSION_4) ? bytes.length
+				: bytes.length + 1);
+			entry.write(bytes, 0, bytes.length);
+		}
+
+		private Binary append(ByteArrayOutputStream entry, boolean keyframe,
+				boolean repeat) {
+			long prefix = entry.size();
+			if (version >= Store.VERSION_3) prefix = prefix << 1
+				| (repeat ? 1 : 0);
+			if (version >= Store.VERSION_2) prefix = prefix << 1
+				| (keyframe ? 1 : 0);
+			varint(out, prefix);
+			out.write(entry.toByteArray(), 0, entry.size());
+			return this;
+		}
+
+		private static void fixed(ByteArrayOutputStream out, long value) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (value >>> shift));
+			}
+		}
+
+		private static void varint(ByteArrayOutputStream out, long value) {
+			while ((value & ~0x7fL) != 0) {
+				out.write((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+	}
+}
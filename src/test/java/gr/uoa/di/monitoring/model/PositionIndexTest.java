@@ -0,0 +1,306 @@
+package gr.uoa.di.monitoring.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PositionIndexTest {
+
+	private static final long START = 1500000000000L;
+	private static final long HOUR = 3600 * 1000L;
+	private static final String[] PROVIDERS = { "gps", "network", null };
+	private static final String[] DEVICES = { "one", "two", null };
+
+	// =========================================================================
+	// Queries
+	// =========================================================================
+	@Test
+	public void withinScansAsBruteForce() {
+		final Random random = new Random(1);
+		for (int size : new int[] { 0, 1, 15, 16, 17, 257, 5000 }) {
+			final PositionIndex index = index(size, random);
+			for (int q = 0; q < 200; ++q) {
+				final double lat = random.nextDouble() * 180 - 90;
+				final double lon = random.nextDouble() * 360 - 180;
+				final double dLat = random.nextDouble() * 20;
+				final double dLon = random.nextDouble() * 40;
+				final long from = START + random.nextInt(48) * HOUR;
+				final long to = (q % 2 == 0) ? Long.MAX_VALUE : from
+					+ random.nextInt(24) * HOUR;
+				final Ints expected = new Ints();
+				for (int i = 0; i < index.size(); ++i) {
+					final double la = index.latitude(i), lo = index
+						.longitude(i);
+					if (la >= lat && la <= lat + dLat && lo >= lon
+						&& lo <= lon + dLon && index.time(i) >= from
+						&& index.time(i) < to) expected.add(i);
+				}
+				assertSameIndices(expected.toArray(), index.within(lat, lon,
+					lat + dLat, lon + dLon, from, to));
+			}
+		}
+	}
+
+	/** Positions on the bounds of the box are in it */
+	@Test
+	public void withinIncludesTheBounds() {
+		final PositionIndex index = new PositionIndex();
+		index.add(new Position(START, 10, 20, "gps"), null);
+		index.add(new Position(START, 11, 21, "gps"), null);
+		index.add(new Position(START, 12, 22, "gps"), null);
+		assertEquals(3, index.within(10, 20, 12, 22).length);
+		assertEquals(1, index.within(11, 21, 11, 21).length);
+		assertEquals(0, index.within(10, 20, 12, 22, START + 1,
+			Long.MAX_VALUE).length);
+	}
+
+	@Test
+	public void nearScansAsBruteForce() {
+		final Random random = new Random(2);
+		for (int size : new int[] { 0, 1, 17, 5000 }) {
+			final PositionIndex index = index(size, random);
+			for (int q = 0; q < 200; ++q) {
+				final double lat = random.nextDouble() * 180 - 90;
+				final double lon = random.nextDouble() * 360 - 180;
+				final double meters = Math.pow(10, 2 + random.nextInt(6));
+				final long from = START + random.nextInt(48) * HOUR;
+				final long to = (q % 2 == 0) ? Long.MAX_VALUE : from
+					+ random.nextInt(24) * HOUR;
+				final Ints expected = new Ints();
+				for (int i = 0; i < index.size(); ++i) {
+					if (index.time(i) >= from && index.time(i) < to
+						&& distance(index, i, lat, lon) <= meters)
+						expected.add(i);
+				}
+				assertSameIndices(expected.toArray(), index.near(lat, lon,
+					meters, from, to));
+			}
+		}
+	}
+
+	/**
+	 * The k nearest are at the k smallest distances, nearest first - which
+	 * of the positions at the same distance is returned is not specified.
+	 */
+	@Test
+	public void nearestScansAsBruteForce() {
+		final Random random = new Random(3);
+		for (int size : new int[] { 0, 1, 17, 5000 }) {
+			final PositionIndex index = index(size, random);
+			for (int q = 0; q < 200; ++q) {
+				final double lat = random.nextDouble() * 180 - 90;
+				final double lon = random.nextDouble() * 360 - 180;
+				final int k = 1 + random.nextInt(50);
+				final long from = START + random.nextInt(48) * HOUR;
+				final long to = (q % 2 == 0) ? Long.MAX_VALUE : from
+					+ random.nextInt(24) * HOUR;
+				final List<Double> distances = new ArrayList<Double>();
+				for (int i = 0; i < index.size(); ++i) {
+					if (index.time(i) >= from && index.time(i) < to)
+						distances.add(distance(index, i, lat, lon));
+				}
+				final double[] expected = sorted(distances, k);
+				final int[] nearest = index.nearest(lat, lon, k, from, to);
+				final double[] actual = new double[nearest.length];
+				for (int i = 0; i < nearest.length; ++i) {
+					assertTrue(index.time(nearest[i]) >= from
+						&& index.time(nearest[i]) < to);
+					actual[i] = distance(index, nearest[i], lat, lon);
+				}
+				assertArrayEquals(expected, actual, 0);
+				assertEquals(nearest.length, distinct(nearest));
+			}
+		}
+	}
+
+	/** Adding after a query packs the index anew */
+	@Test
+	public void addAfterQuery() {
+		final PositionIndex index = index(100, new Random(4));
+		assertEquals(0, index.within(-1, -1, 1, 1).length);
+		index.add(new Position(START, 0, 0, "gps"), "one");
+		final int[] found = index.within(-1, -1, 1, 1);
+		assertEquals(1, found.length);
+		assertEquals("one", index.device(found[0]));
+		assertEquals(101, index.size());
+	}
+
+	// =========================================================================
+	// Persistence
+	// =========================================================================
+	@Test
+	public void writeReadRoundTrip() throws IOException {
+		final Random random = new Random(5);
+		for (int size : new int[] { 0, 1, 16, 17, 5000 }) {
+			final PositionIndex index = index(size, random);
+			final PositionIndex read = PositionIndex.read(
+				new ByteArrayInputStream(bytes(index)));
+			assertEquals(index.size(), read.size());
+			for (int i = 0; i < index.size(); ++i) {
+				assertEquals(index.time(i), read.time(i));
+				assertEquals(index.latitude(i), read.latitude(i), 0);
+				assertEquals(index.longitude(i), read.longitude(i), 0);
+				assertEquals(index.provider(i), read.provider(i));
+				assertEquals(index.device(i), read.device(i));
+			}
+			for (int q = 0; q < 50; ++q) {
+				final double lat = random.nextDouble() * 160 - 80;
+				final double lon = random.nextDouble() * 340 - 170;
+				assertArrayEquals(index.within(lat, lon, lat + 10, lon + 10),
+					read.within(lat, lon, lat + 10, lon + 10));
+				assertArrayEquals(index.near(lat, lon, 1e6), read.near(lat,
+					lon, 1e6));
+				assertArrayEquals(index.nearest(lat, lon, 10), read.nearest(
+					lat, lon, 10));
+			}
+			// written as read - it is not packed anew
+			assertArrayEquals(bytes(index), bytes(read));
+		}
+	}
+
+	@Test
+	public void corruptIndexIsRejected() throws IOException {
+		// one provider and one device, both null : the size is at 15
+		final PositionIndex index = new PositionIndex();
+		for (int i = 0; i < 100; ++i) {
+			index.add(new Position(START + i, i % 90, i, null), null);
+		}
+		final byte[] bytes = bytes(index);
+		assertEquals(100, ByteBuffer.wrap(bytes).getInt(15));
+		for (int size : new int[] { -1, 99, 101, Integer.MAX_VALUE }) {
+			final byte[] corrupt = bytes.clone();
+			ByteBuffer.wrap(corrupt).putInt(15, size);
+			assertRejected("size " + size, corrupt);
+		}
+		final int leaves = 15 + 4 + 100 * 32;
+		final byte[] corrupt = bytes.clone();
+		ByteBuffer.wrap(corrupt).putInt(leaves + 4, 9); // nodes
+		assertRejected("nodes", corrupt);
+		final byte[] magic = bytes.clone();
+		magic[0] ^= 1;
+		assertRejected("magic", magic);
+		final byte[] truncated = new byte[bytes.length - 1];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		assertRejected("truncated", truncated);
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * A packed index of {@code size} positions over two days - half of them
+	 * clustered in a city, some at the poles and the antimeridian, some the
+	 * same.
+	 */
+	private static PositionIndex index(int size, Random random) {
+		final PositionIndex index = new PositionIndex();
+		for (int i = 0; i < size; ++i) {
+			final double lat, lon;
+			switch (i % 8) {
+			case 0:
+				lat = random.nextDouble() * 180 - 90;
+				lon = random.nextDouble() * 360 - 180;
+				break;
+			case 1:
+				lat = 89.5 + random.nextDouble() / 2 * (random.nextBoolean()
+					? 1 : -1);
+				lon = random.nextDouble() * 360 - 180;
+				break;
+			case 2:
+				lat = random.nextDouble() * 10 - 5;
+				lon = 179.5 + random.nextDouble() / 2;
+				break;
+			case 3:
+				lat = 37.98;
+				lon = 23.73;
+				break;
+			default:
+				lat = 37.9 + random.nextDouble() / 5;
+				lon = 23.6 + random.nextDouble() / 5;
+			}
+			index.add(new Position(START + random.nextInt(48) * HOUR, lat,
+				lon, PROVIDERS[random.nextInt(PROVIDERS.length)]),
+				DEVICES[random.nextInt(DEVICES.length)]);
+		}
+		index.pack(); // so the scans see the positions as the queries do
+		return index;
+	}
+
+	private static double distance(PositionIndex index, int i, double lat,
+			double lon) {
+		return Position.distance(lat, lon, index.latitude(i), index
+			.longitude(i));
+	}
+
+	private static double[] sorted(List<Double> distances, int k) {
+		final double[] sorted = new double[distances.size()];
+		for (int i = 0; i < sorted.length; ++i) {
+			sorted[i] = distances.get(i);
+		}
+		Arrays.sort(sorted);
+		final double[] smallest = new double[Math.min(k, sorted.length)];
+		System.arraycopy(sorted, 0, smallest, 0, smallest.length);
+		return smallest;
+	}
+
+	private static int distinct(int[] indices) {
+		final int[] sorted = indices.clone();
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for (int i = 0; i < sorted.length; ++i) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) ++distinct;
+		}
+		return distinct;
+	}
+
+	private static void assertSameIndices(int[] expected, int[] actual) {
+		final int[] sorted = actual.clone();
+		Arrays.sort(sorted);
+		assertArrayEquals(expected, sorted);
+	}
+
+	private static void assertRejected(String message, byte[] bytes) {
+		try {
+			PositionIndex.read(new ByteArrayInputStream(bytes));
+			fail("Read an index of corrupt " + message);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static byte[] bytes(PositionIndex index) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.write(out);
+		return out.toByteArray();
+	}
+
+	/** Indices in ascending order, as the scans add them */
+	private static final class Ints {
+
+		private final List<Integer> list = new ArrayList<Integer>();
+
+		void add(int value) {
+			list.add(value);
+		}
+
+		int[] toArray() {
+			final int[] array = new int[list.size()];
+			for (int i = 0; i < array.length; ++i) {
+				array[i] = list.get(i);
+			}
+			return array;
+		}
+	}
+}
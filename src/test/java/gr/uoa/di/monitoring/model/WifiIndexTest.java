@@ -0,0 +1,195 @@
+package gr.uoa.di.monitoring.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class WifiIndexTest {
+
+	// =========================================================================
+	// top
+	// =========================================================================
+	@Test
+	public void topRanksBySimilarity() {
+		final WifiIndex index = new WifiIndex();
+		index.add(scan(network(mac(1), -50), network(mac(2), -60)), null);
+		index.add(scan(network(mac(1), -50)), null);
+		index.add(scan(network(mac(3), -40)), null);
+		index.add(scan(network(mac(1), -90), network(mac(2), -95)), null);
+		final int[] similarity = new int[4];
+		// weights 50 and 40 : min(50, 50) + min(40, 40), 50, 10 + 5
+		assertArrayEquals(new int[] { 0, 1, 3 }, index.top(scan(network(
+			mac(1), -50), network(mac(2), -60)), 10, similarity));
+		assertArrayEquals(new int[] { 90, 50, 15, 0 }, similarity);
+	}
+
+	/** Scans equally similar are in the order they were added */
+	@Test
+	public void tiesInAddOrder() {
+		final WifiIndex index = new WifiIndex();
+		for (int i = 0; i < 6; ++i) {
+			index.add(scan(network(mac(i % 2), -70)), "device" + i);
+		}
+		assertArrayEquals(new int[] { 0, 2, 4 }, index.top(scan(network(
+			mac(0), -70)), 10));
+		assertArrayEquals(new int[] { 1, 3, 5 }, index.top(scan(network(
+			mac(1), -70)), 10));
+		// all six score 30 - stronger levels in the query do not matter
+		assertArrayEquals(new int[] { 0, 1, 2, 3, 4, 5 }, index.top(scan(
+			network(mac(0), -20), network(mac(1), -20)), 10));
+	}
+
+	@Test
+	public void topReturnsAtMostK() {
+		final WifiIndex index = new WifiIndex();
+		for (int i = 0; i < 5; ++i) {
+			index.add(scan(network(mac(0), -80 + i)), null);
+		}
+		final Wifi query = scan(network(mac(0), 0));
+		assertArrayEquals(new int[] { 4, 3 }, index.top(query, 2));
+		assertArrayEquals(new int[0], index.top(query, 0));
+		assertArrayEquals(new int[] { 4, 3, 2, 1, 0 }, index.top(query, 9));
+	}
+
+	/** BSSIDs never added match nothing - and are not added by queries */
+	@Test
+	public void unseenBssids() {
+		final WifiIndex index = new WifiIndex();
+		index.add(scan(network(mac(1), -50), network("not a mac", -50)), null);
+		assertEquals(2, index.bssids());
+		assertArrayEquals(new int[0], index.top(scan(network(mac(2), -50),
+			network("other", -50)), 5));
+		assertArrayEquals(new int[] { 0 }, index.top(scan(network(mac(2),
+			-50), network("not a mac", -50)), 5));
+		assertEquals(2, index.bssids());
+		assertEquals(2, index.entries());
+	}
+
+	/** A BSSID twice in a scan counts once, with its highest level */
+	@Test
+	public void duplicateBssids() {
+		final WifiIndex index = new WifiIndex();
+		index.add(scan(network(mac(1), -90), network(mac(1), -40)), null);
+		assertEquals(1, index.entries());
+		final int[] similarity = new int[1];
+		index.top(scan(network(mac(1), -40), network(mac(1), -95)), 1,
+			similarity);
+		assertEquals(60, similarity[0]);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullBssidIsRejected() {
+		new WifiIndex().add(scan(network(null, -50)), null);
+	}
+
+	/**
+	 * Many scans of many BSSIDs - more than the initial capacity of the index
+	 * - ranked as computed from the scans themselves, query after query.
+	 */
+	@Test
+	public void topRanksAsBruteForce() {
+		final Random random = new Random(1);
+		final WifiIndex index = new WifiIndex();
+		final List<Wifi> scans = new ArrayList<Wifi>();
+		for (int i = 0; i < 3000; ++i) {
+			final Wifi scan = randomScan(random);
+			scans.add(scan);
+			assertEquals(i, index.add(scan, (i % 3 == 0) ? null : "two"));
+		}
+		assertEquals(3000, index.size());
+		assertEquals("two", index.device(1));
+		for (int q = 0; q < 300; ++q) {
+			final Wifi query = randomScan(random);
+			final List<int[]> expected = new ArrayList<int[]>(); // scan, score
+			for (int i = 0; i < scans.size(); ++i) {
+				final int score = similarity(scans.get(i), query);
+				if (score > 0) expected.add(new int[] { i, score });
+			}
+			Collections.sort(expected, new Comparator<int[]>() {
+
+				@Override
+				public int compare(int[] a, int[] b) {
+					if (a[1] != b[1]) return (a[1] > b[1]) ? -1 : 1;
+					return (a[0] < b[0]) ? -1 : (a[0] == b[0]) ? 0 : 1;
+				}
+			});
+			final int k = 1 + random.nextInt(40);
+			final int[] similarity = new int[k];
+			final int[] top = index.top(query, k, similarity);
+			assertEquals(Math.min(k, expected.size()), top.length);
+			for (int i = 0; i < top.length; ++i) {
+				assertEquals(expected.get(i)[0], top[i]);
+				assertEquals(expected.get(i)[1], similarity[i]);
+			}
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private static Wifi scan(Wifi.Network... networks) {
+		final Wifi scan = Wifi.fromString("1500000000000");
+		for (Wifi.Network n : networks) {
+			scan.networks.add(n);
+		}
+		return scan;
+	}
+
+	private static Wifi.Network network(String bssid, int level) {
+		final Wifi.Network n = new Wifi.Network();
+		n.ssid = "ssid";
+		n.bssid(bssid);
+		n.level = level;
+		return n;
+	}
+
+	/** A lower case MAC address - packed by the index */
+	private static String mac(int i) {
+		return String.format("02:00:00:00:%02x:%02x", i >>> 8, i & 0xff);
+	}
+
+	/** A few of 2000 BSSIDs, some of them not MAC addresses */
+	private static Wifi randomScan(Random random) {
+		final int count = 1 + random.nextInt(12);
+		final Wifi.Network[] networks = new Wifi.Network[count];
+		for (int i = 0; i < count; ++i) {
+			final int b = random.nextInt(2000);
+			networks[i] = network((b % 10 == 0) ? "bssid " + b : mac(b),
+				-110 + random.nextInt(120));
+		}
+		return scan(networks);
+	}
+
+	/** The similarity of the scans as the index defines it */
+	private static int similarity(Wifi scan, Wifi query) {
+		final Map<String, Integer> s = levels(scan), q = levels(query);
+		int similarity = 0;
+		for (Map.Entry<String, Integer> e : q.entrySet()) {
+			final Integer level = s.get(e.getKey());
+			if (level != null)
+				similarity += Math.min(WifiIndex.weight(level), WifiIndex
+					.weight(e.getValue()));
+		}
+		return similarity;
+	}
+
+	/** The highest level of each BSSID of the scan */
+	private static Map<String, Integer> levels(Wifi scan) {
+		final Map<String, Integer> levels = new HashMap<String, Integer>();
+		for (Wifi.Network n : scan.networks) {
+			final Integer level = levels.get(n.bssid());
+			if (level == null || level < n.level)
+				levels.put(n.bssid(), n.level);
+		}
+		return levels;
+	}
+}